@@ -0,0 +1,48 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Last segment of {@link CommitLog} where records are appended. Not thread safe.
+ *
+ * @see ChannelSegment
+ * @see MappedSegment
+ */
+interface ActiveSegment extends Closeable {
+
+    void write(ByteBuffer[] buffers, long bytes) throws IOException;
+
+    /**
+     * Make written records durable
+     */
+    void force() throws IOException;
+
+    /**
+     * Drop bytes written after size, like torn record of failed write
+     */
+    void truncate(long size) throws IOException;
+
+    /**
+     * Release file, it keeps only written records
+     */
+    @Override
+    void close() throws IOException;
+
+}
@@ -0,0 +1,61 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records are appended by {@link FileChannel#write(ByteBuffer[])}
+ */
+class ChannelSegment implements ActiveSegment {
+
+    private final FileChannel fileChannel;
+
+    ChannelSegment(final File file) {
+        try {
+            fileChannel = new FileOutputStream(file, true).getChannel();
+        } catch (FileNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void write(final ByteBuffer[] buffers, final long bytes) throws IOException {
+        long written = 0;
+        while (written < bytes) written += fileChannel.write(buffers);
+    }
+
+    @Override
+    public void force() throws IOException {
+        fileChannel.force(false);
+    }
+
+    @Override
+    public void truncate(final long size) throws IOException {
+        fileChannel.truncate(size);
+    }
+
+    @Override
+    public void close() throws IOException {
+        fileChannel.close();
+    }
+
+}
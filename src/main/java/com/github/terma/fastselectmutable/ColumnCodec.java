@@ -0,0 +1,310 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.github.terma.fastselect.FastSelect;
+import com.github.terma.fastselect.FastSelectBuilder;
+
+import java.lang.reflect.Field;
+import java.util.*;
+
+/**
+ * Column oriented payload of {@link CommitLog} record with schema of {@link FastSelect} columns of data class,
+ * instead of Kryo object graph:
+ * <p>
+ * marker, int schema hash, deletes count, deletes as zigzag deltas, rows count, block per column.
+ * <p>
+ * Column block is all values of added rows: var ints and longs, fixed size for other primitives.
+ * String block is flag and plain strings or dictionary of distinct strings and their var int numbers,
+ * dictionary is used when at least half of values are repeated. Other types are written by Kryo.
+ * <p>
+ * Record with values set in place has {@link #SET_MARKER} and block of them after columns: count, then position
+ * as zigzag delta, column number and value of column type for each.
+ * <p>
+ * Kryo record starts with 0 or 1 as class of first field, so marker separates formats in one log.
+ * <p>
+ * Thread safe, {@link Kryo} is passed by caller.
+ */
+class ColumnCodec<T> {
+
+    static final byte MARKER = 'C';
+    static final byte SET_MARKER = 'S';
+
+    private static final int BYTE = 0;
+    private static final int SHORT = 1;
+    private static final int INT = 2;
+    private static final int LONG = 3;
+    private static final int FLOAT = 4;
+    private static final int DOUBLE = 5;
+    private static final int BOOLEAN = 6;
+    private static final int CHAR = 7;
+    private static final int STRING = 8;
+    private static final int OBJECT = 9;
+
+    private final Class<T> clazz;
+    private final Field[] fields;
+    private final int[] kinds;
+    private final Map<String, Integer> numbers = new HashMap<>();
+    private final int schema;
+
+    ColumnCodec(final Class<T> clazz) {
+        this.clazz = clazz;
+        final List<FastSelect.Column> columns = new FastSelectBuilder<>(clazz).create().getColumns();
+        fields = new Field[columns.size()];
+        kinds = new int[columns.size()];
+        int hash = 0;
+        for (int c = 0; c < fields.length; c++) {
+            fields[c] = Table.field(clazz, columns.get(c).name);
+            kinds[c] = kind(fields[c].getType());
+            numbers.put(fields[c].getName(), c);
+            hash = 31 * hash + fields[c].getName().hashCode();
+            hash = 31 * hash + fields[c].getType().getName().hashCode();
+        }
+        schema = hash;
+    }
+
+    /**
+     * @return - true if payload is written by codec
+     */
+    static boolean marked(final byte[] payload) {
+        return payload.length > 0 && (payload[0] == MARKER || payload[0] == SET_MARKER);
+    }
+
+    void write(final Kryo kryo, final Output output, final DeleteAndAdd<T> update) {
+        output.writeByte(update.set.isEmpty() ? MARKER : SET_MARKER);
+        output.writeInt(schema);
+
+        output.writeVarInt(update.delete.size(), true);
+        int previous = 0;
+        for (final Integer position : update.delete) {
+            output.writeVarInt(position - previous, false);
+            previous = position;
+        }
+
+        final List<T> rows = update.add;
+        output.writeVarInt(rows.size(), true);
+        try {
+            for (int c = 0; c < fields.length; c++) writeColumn(kryo, output, fields[c], kinds[c], rows);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Can't read row of " + clazz, e);
+        }
+
+        if (update.set.isEmpty()) return;
+        output.writeVarInt(update.set.size(), true);
+        previous = 0;
+        for (final ColumnUpdate set : update.set) {
+            final Integer c = numbers.get(set.column);
+            if (c == null) throw new IllegalArgumentException("No column " + set.column + " in " + clazz);
+            output.writeVarInt(set.position - previous, false);
+            previous = set.position;
+            output.writeVarInt(c, true);
+            writeValue(output, kinds[c], (Number) set.value);
+        }
+    }
+
+    /**
+     * @param input - payload starting from marker
+     * @throws IllegalStateException - if record is written for other columns of data class
+     */
+    DeleteAndAdd<T> read(final Kryo kryo, final Input input) {
+        final boolean withSet = input.readByte() == SET_MARKER;
+        final int recordSchema = input.readInt();
+        if (recordSchema != schema)
+            throw new IllegalStateException("Commit log record is written for other columns of " + clazz);
+
+        final int deletes = input.readVarInt(true);
+        final List<Integer> delete = new ArrayList<>(deletes);
+        int previous = 0;
+        for (int i = 0; i < deletes; i++) {
+            previous += input.readVarInt(false);
+            delete.add(previous);
+        }
+
+        final int count = input.readVarInt(true);
+        final List<T> rows = new ArrayList<>(count);
+        try {
+            for (int i = 0; i < count; i++) rows.add(clazz.newInstance());
+            for (int c = 0; c < fields.length; c++) readColumn(kryo, input, fields[c], kinds[c], rows);
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new RuntimeException("Can't create row of " + clazz, e);
+        }
+        if (!withSet) return new DeleteAndAdd<>(delete, rows);
+
+        final int sets = input.readVarInt(true);
+        final List<ColumnUpdate> set = new ArrayList<>(sets);
+        previous = 0;
+        for (int i = 0; i < sets; i++) {
+            previous += input.readVarInt(false);
+            final int c = input.readVarInt(true);
+            set.add(new ColumnUpdate(previous, fields[c].getName(), readValue(input, kinds[c])));
+        }
+        return new DeleteAndAdd<>(delete, rows, set);
+    }
+
+    private static void writeValue(final Output output, final int kind, final Number value) {
+        switch (kind) {
+            case BYTE:
+                output.writeByte(value.byteValue());
+                break;
+            case SHORT:
+                output.writeShort(value.shortValue());
+                break;
+            case INT:
+                output.writeVarInt(value.intValue(), false);
+                break;
+            case LONG:
+                output.writeVarLong(value.longValue(), false);
+                break;
+            case FLOAT:
+                output.writeFloat(value.floatValue());
+                break;
+            case DOUBLE:
+                output.writeDouble(value.doubleValue());
+                break;
+            default:
+                throw new IllegalArgumentException("Only numeric columns are set in place");
+        }
+    }
+
+    private static Number readValue(final Input input, final int kind) {
+        switch (kind) {
+            case BYTE:
+                return input.readByte();
+            case SHORT:
+                return input.readShort();
+            case INT:
+                return input.readVarInt(false);
+            case LONG:
+                return input.readVarLong(false);
+            case FLOAT:
+                return input.readFloat();
+            default:
+                return input.readDouble();
+        }
+    }
+
+    private static void writeColumn(final Kryo kryo, final Output output, final Field field, final int kind,
+                                    final List<?> rows) throws IllegalAccessException {
+        switch (kind) {
+            case BYTE:
+                for (final Object row : rows) output.writeByte(field.getByte(row));
+                break;
+            case SHORT:
+                for (final Object row : rows) output.writeShort(field.getShort(row));
+                break;
+            case INT:
+                for (final Object row : rows) output.writeVarInt(field.getInt(row), false);
+                break;
+            case LONG:
+                for (final Object row : rows) output.writeVarLong(field.getLong(row), false);
+                break;
+            case FLOAT:
+                for (final Object row : rows) output.writeFloat(field.getFloat(row));
+                break;
+            case DOUBLE:
+                for (final Object row : rows) output.writeDouble(field.getDouble(row));
+                break;
+            case BOOLEAN:
+                for (final Object row : rows) output.writeBoolean(field.getBoolean(row));
+                break;
+            case CHAR:
+                for (final Object row : rows) output.writeChar(field.getChar(row));
+                break;
+            case STRING:
+                writeStrings(output, field, rows);
+                break;
+            default:
+                for (final Object row : rows) kryo.writeObjectOrNull(output, field.get(row), field.getType());
+        }
+    }
+
+    private static void writeStrings(final Output output, final Field field, final List<?> rows)
+            throws IllegalAccessException {
+        final Map<String, Integer> dictionary = new LinkedHashMap<>();
+        for (final Object row : rows) {
+            final String value = (String) field.get(row);
+            if (!dictionary.containsKey(value)) dictionary.put(value, dictionary.size());
+        }
+
+        if (dictionary.size() * 2 > rows.size()) {
+            output.writeBoolean(false);
+            for (final Object row : rows) output.writeString((String) field.get(row));
+        } else {
+            output.writeBoolean(true);
+            output.writeVarInt(dictionary.size(), true);
+            for (final String value : dictionary.keySet()) output.writeString(value);
+            for (final Object row : rows) output.writeVarInt(dictionary.get(field.get(row)), true);
+        }
+    }
+
+    private static void readColumn(final Kryo kryo, final Input input, final Field field, final int kind,
+                                   final List<?> rows) throws IllegalAccessException {
+        switch (kind) {
+            case BYTE:
+                for (final Object row : rows) field.setByte(row, input.readByte());
+                break;
+            case SHORT:
+                for (final Object row : rows) field.setShort(row, input.readShort());
+                break;
+            case INT:
+                for (final Object row : rows) field.setInt(row, input.readVarInt(false));
+                break;
+            case LONG:
+                for (final Object row : rows) field.setLong(row, input.readVarLong(false));
+                break;
+            case FLOAT:
+                for (final Object row : rows) field.setFloat(row, input.readFloat());
+                break;
+            case DOUBLE:
+                for (final Object row : rows) field.setDouble(row, input.readDouble());
+                break;
+            case BOOLEAN:
+                for (final Object row : rows) field.setBoolean(row, input.readBoolean());
+                break;
+            case CHAR:
+                for (final Object row : rows) field.setChar(row, input.readChar());
+                break;
+            case STRING:
+                if (input.readBoolean()) {
+                    final String[] dictionary = new String[input.readVarInt(true)];
+                    for (int i = 0; i < dictionary.length; i++) dictionary[i] = input.readString();
+                    for (final Object row : rows) field.set(row, dictionary[input.readVarInt(true)]);
+                } else {
+                    for (final Object row : rows) field.set(row, input.readString());
+                }
+                break;
+            default:
+                for (final Object row : rows) field.set(row, kryo.readObjectOrNull(input, field.getType()));
+        }
+    }
+
+    private static int kind(final Class<?> type) {
+        if (type == byte.class) return BYTE;
+        if (type == short.class) return SHORT;
+        if (type == int.class) return INT;
+        if (type == long.class) return LONG;
+        if (type == float.class) return FLOAT;
+        if (type == double.class) return DOUBLE;
+        if (type == boolean.class) return BOOLEAN;
+        if (type == char.class) return CHAR;
+        if (type == String.class) return STRING;
+        return OBJECT;
+    }
+
+}
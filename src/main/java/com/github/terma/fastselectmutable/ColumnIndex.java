@@ -0,0 +1,46 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+/**
+ * Read only secondary index of not deleted rows by value of column, declared by
+ * {@link MutableFastSelectBuilder#index(String, IndexType)} and available by {@link Positions#index(String)}.
+ * <p>
+ * Values should be of column type, like {@code Long} for {@code long} column. Rows with null value are not indexed.
+ * Valid only inside {@link Selector#execute} or {@link Modifier#execute}.
+ */
+public interface ColumnIndex {
+
+    /**
+     * @return - count of distinct values
+     */
+    int size();
+
+    /**
+     * @return - positions of rows with value in order of adding, empty if no such value
+     */
+    int[] get(Object value);
+
+    /**
+     * Supported only by {@link IndexType#SORTED}
+     *
+     * @param from - min value, inclusive
+     * @param to   - max value, inclusive
+     * @return - positions of rows with value in range ordered by value
+     */
+    int[] range(Object from, Object to);
+
+}
@@ -0,0 +1,104 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+import com.github.terma.fastselect.data.Data;
+
+import java.util.Arrays;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * {@link ColumnIndex} on {@link IdIndex} built for column instead of id.
+ * Sorted index keeps distinct values in {@link TreeSet} in addition.
+ * <p>
+ * Not thread safe.
+ */
+class ColumnPositions implements ColumnIndex {
+
+    final String column;
+    final IndexType type;
+    final Data data;
+
+    private IdIndex positions;
+    private TreeSet<Object> values;
+
+    ColumnPositions(final String column, final IndexType type, final Data data, final boolean offHeap) {
+        this.column = column;
+        this.type = type;
+        this.data = data;
+        use(new IdIndex(data, 0, offHeap));
+    }
+
+    /**
+     * Replace positions by loaded or built ones, direct memory of previous ones is released
+     */
+    void use(final IdIndex positions) {
+        if (this.positions != null) this.positions.free();
+        this.positions = positions;
+        if (type == IndexType.SORTED) values = new TreeSet<>(positions.keys());
+    }
+
+    IdIndex positions() {
+        return positions;
+    }
+
+    void add(final int position) {
+        final Object value = data.get(position);
+        if (value == null) return;
+        positions.add(position);
+        if (values != null && positions.count(value) == 1) values.add(value);
+    }
+
+    void remove(final int position) {
+        final Object value = data.get(position);
+        if (value == null) return;
+        positions.remove(position);
+        if (values != null && !positions.contains(value)) values.remove(value);
+    }
+
+    void free() {
+        positions.free();
+    }
+
+    @Override
+    public int size() {
+        return positions.size();
+    }
+
+    @Override
+    public int[] get(final Object value) {
+        return value == null ? new int[0] : positions.get(value);
+    }
+
+    @Override
+    public int[] range(final Object from, final Object to) {
+        if (values == null) throw new UnsupportedOperationException("Range needs sorted index, but " + column + " has " + type);
+
+        final NavigableSet<Object> range = values.subSet(from, true, to, true);
+        int[] result = new int[range.size()];
+        int count = 0;
+        for (final Object value : range) {
+            final int[] valuePositions = positions.get(value);
+            if (count + valuePositions.length > result.length)
+                result = Arrays.copyOf(result, Math.max(result.length * 2, count + valuePositions.length));
+            System.arraycopy(valuePositions, 0, result, count, valuePositions.length);
+            count += valuePositions.length;
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+}
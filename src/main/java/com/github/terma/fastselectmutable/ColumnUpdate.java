@@ -0,0 +1,47 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+import java.io.Serializable;
+
+/**
+ * New value of one column of row, set in place for fixed width columns
+ *
+ * @see Setter
+ * @see DeleteAndAdd#set
+ */
+@SuppressWarnings("WeakerAccess")
+public class ColumnUpdate implements Serializable {
+
+    public final int position;
+    public final String column;
+    /**
+     * {@link Number} for fixed width column, any integral one is converted to column type
+     */
+    public final Object value;
+
+    public ColumnUpdate(final int position, final String column, final Object value) {
+        this.position = position;
+        this.column = column;
+        this.value = value;
+    }
+
+    @Override
+    public String toString() {
+        return "ColumnUpdate {position: " + position + ", column: " + column + ", value: " + value + "}";
+    }
+
+}
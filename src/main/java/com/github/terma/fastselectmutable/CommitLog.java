@@ -22,76 +22,788 @@ import com.esotericsoftware.kryo.io.Output;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
+/**
+ * Log of {@link DeleteAndAdd} split to segments: commit-log-1.bin, commit-log-2.bin...
+ * Records are appended to last (active) segment, when it reaches segment size or on {@link #rotate()}
+ * it's sealed and next one is started. Sealed segments are immutable and removed by {@link #delete(long)}
+ * when they are part of data file.
+ * <p>
+ * Each record is framed as: int length, int CRC32 of payload, Kryo payload. On open and after failed write
+ * active segment is truncated to last valid record. Damaged record in sealed segment fails reading, as records
+ * after it are acknowledged and can't be skipped or removed with segments by snapshot.
+ * <p>
+ * With group commit or {@link Batch} records are applied by caller before they are written, so after
+ * failed write log doesn't accept new records and should be reopened.
+ * <p>
+ * Optionally active segment is preallocated and memory mapped, see {@link MappedSegment}, and segments
+ * are read from memory mapping on replay.
+ * <p>
+ * When data class is known payload is written by {@link ColumnCodec}, Kryo records of earlier versions
+ * in same log are still readable.
+ */
 @SuppressWarnings("WeakerAccess")
-public class CommitLog<T> {
+public class CommitLog<T> implements Closeable {
 
     private static final Logger LOGGER = Logger.getAnonymousLogger();
 
-    private static final String FILENAME = "commit-log.bin";
+    private static final String LEGACY_FILENAME = "commit-log.bin";
+    private static final String PREFIX = "commit-log-";
+    private static final String SUFFIX = ".bin";
+
+    public static final long SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final Pending CLOSE = new Pending(new byte[0], 0, false);
+
+    private static final int OUTPUT_SIZE = 64 * 1024;
+    private static final int BATCH_SIZE = 4 * 1024;
+    /**
+     * buffer grown by big batch is dropped after write to not keep memory
+     */
+    private static final int MAX_RETAINED_OUTPUT_SIZE = 16 * 1024 * 1024;
 
     private final boolean useLog;
-    private final File file;
-    private final Kryo kryo = new Kryo();
-    private final FileChannel fileChannel;
+    private final File dir;
+    private final Kryo kryo = newKryo();
+    /**
+     * reusable buffer for framed records, guarded by kryo
+     */
+    private final Output output = new Output(OUTPUT_SIZE, -1);
+
+    private final long segmentSize;
+    private final Object lock = new Object();
+    private final TreeMap<Long, Long> sealedSizes = new TreeMap<>();
+    private long segment;
+    private long activeSize;
+    private ActiveSegment active;
+    private final boolean mapped;
+    /**
+     * null to write Kryo object graphs
+     */
+    private final ColumnCodec<T> codec;
+
+    private final Durability durability;
+    private final ScheduledExecutorService sync;
+    private final GroupCommit groupCommit;
+    private final BlockingQueue<Pending> queue;
+    private final Thread writer;
+    private volatile Pending last;
+    /**
+     * error of write which could be seen by readers before it's durable, no more records are accepted after it
+     */
+    private volatile IOException failure;
 
     public CommitLog(final File dir, final boolean useLog) {
+        this(dir, useLog, GroupCommit.DISABLED);
+    }
+
+    public CommitLog(final File dir, final boolean useLog, final GroupCommit groupCommit) {
+        this(dir, useLog, Durability.PER_WRITE, groupCommit);
+    }
+
+    public CommitLog(final File dir, final boolean useLog, final Durability durability) {
+        this(dir, useLog, durability, GroupCommit.DISABLED);
+    }
+
+    public CommitLog(final File dir, final boolean useLog, final Durability durability, final GroupCommit groupCommit) {
+        this(dir, useLog, durability, groupCommit, SEGMENT_SIZE);
+    }
+
+    /**
+     * @param segmentSize - size in bytes after which active segment is sealed and next one is started
+     */
+    public CommitLog(final File dir, final boolean useLog, final Durability durability, final GroupCommit groupCommit,
+                     final long segmentSize) {
+        this(dir, useLog, durability, groupCommit, segmentSize, false);
+    }
+
+    /**
+     * @param segmentSize - size in bytes after which active segment is sealed and next one is started
+     * @param mapped      - preallocate active segment of segment size and append to it by memory mapping,
+     *                    segment size should be less than 2 GB
+     */
+    public CommitLog(final File dir, final boolean useLog, final Durability durability, final GroupCommit groupCommit,
+                     final long segmentSize, final boolean mapped) {
+        this(dir, useLog, durability, groupCommit, segmentSize, mapped, null);
+    }
+
+    /**
+     * @param segmentSize - size in bytes after which active segment is sealed and next one is started
+     * @param mapped      - preallocate active segment of segment size and append to it by memory mapping,
+     *                    segment size should be less than 2 GB
+     * @param clazz       - data class to write records by columns of its {@link com.github.terma.fastselect.FastSelect},
+     *                    null to write Kryo object graphs
+     */
+    public CommitLog(final File dir, final boolean useLog, final Durability durability, final GroupCommit groupCommit,
+                     final long segmentSize, final boolean mapped, final Class<T> clazz) {
         this.useLog = useLog;
-        file = new File(dir, FILENAME);
-        try {
-            fileChannel = new FileOutputStream(file, true).getChannel();
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException(e);
+        this.mapped = mapped;
+        this.codec = clazz == null ? null : new ColumnCodec<>(clazz);
+        this.dir = dir;
+        this.durability = durability;
+        this.groupCommit = groupCommit;
+        this.segmentSize = segmentSize;
+
+        convertLegacy();
+
+        final List<Long> segments = segments();
+        segment = segments.isEmpty() ? 1 : segments.get(segments.size() - 1);
+        for (final long id : segments) {
+            if (id != segment) sealedSizes.put(id, segmentFile(id).length());
+        }
+        activeSize = truncateDamaged();
+        active = open(segment, activeSize);
+
+        if (groupCommit.enabled()) {
+            queue = new LinkedBlockingQueue<>();
+            writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    writeLoop();
+                }
+            }, "commit-log-writer");
+            writer.setDaemon(true);
+            writer.start();
+        } else {
+            queue = null;
+            writer = null;
+        }
+
+        if (durability.mode == Durability.Mode.PERIODIC) {
+            sync = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("commit-log-sync"));
+            sync.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    force();
+                }
+            }, durability.periodMillis, durability.periodMillis, TimeUnit.MILLISECONDS);
+        } else {
+            sync = null;
         }
-        kryo.register(DeleteAndAdd.class);
     }
 
+    /**
+     * Write and wait until record is durable according to {@link Durability}
+     */
     public void write(DeleteAndAdd<T> update) {
-        try {
-            final long start = System.currentTimeMillis();
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            Output oos = new Output(baos);
-            kryo.writeObject(oos, update);
-            oos.close();
-            byte[] array = baos.toByteArray();
-            fileChannel.write(ByteBuffer.wrap(array));
-            fileChannel.force(false);
-            if (useLog)
-                LOGGER.info("write " + (array.length / 1024) + " kb in " + (System.currentTimeMillis() - start) + " msec");
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        await(append(update));
+    }
+
+    /**
+     * Serialize record and put it to log. Without group commit record is written and forced
+     * by caller thread, otherwise it's queued for writer thread.
+     *
+     * @return - completed when record is written and forced if {@link Durability#PER_WRITE}
+     */
+    public Future<Void> append(DeleteAndAdd<T> update) {
+        return append(Collections.singletonList(update));
+    }
+
+    /**
+     * Put records to log by one write, they are framed same as appended one by one.
+     * <p>
+     * Records are serialized to reusable buffer, without group commit it's written as is,
+     * otherwise copied once to be queued.
+     *
+     * @return - completed when all records are written and forced if {@link Durability#PER_WRITE}
+     * @throws IllegalStateException - if log failed to write earlier records
+     * @see #append(DeleteAndAdd)
+     */
+    public Future<Void> append(List<DeleteAndAdd<T>> updates) {
+        checkNotFailed();
+        synchronized (kryo) {
+            output.clear();
+            for (final DeleteAndAdd<T> update : updates) frame(kryo, codec, output, update);
+            final Pending pending = submit(output.getBuffer(), output.position(), true, false);
+            if (output.getBuffer().length > MAX_RETAINED_OUTPUT_SIZE) output.setBuffer(new byte[OUTPUT_SIZE], -1);
+            return pending;
+        }
+    }
+
+    /**
+     * @throws IllegalStateException - if log failed to write earlier records
+     */
+    public Batch batch() {
+        checkNotFailed();
+        return new Batch();
+    }
+
+    /**
+     * Put records of batch to log by one write, failed write puts log to failed state
+     * as records of batch are applied by caller before.
+     *
+     * @return - completed when all records are written and forced if {@link Durability#PER_WRITE}
+     * @throws IllegalStateException - if log failed to write earlier records
+     */
+    public Future<Void> append(final Batch batch) {
+        checkNotFailed();
+        return submit(batch.output.getBuffer(), batch.output.position(), false, true);
+    }
+
+    private void checkNotFailed() {
+        final IOException failed = failure;
+        if (failed != null) throw new IllegalStateException("Commit log in " + dir + " failed to write, reopen it", failed);
+    }
+
+    /**
+     * Write framed records by caller thread or queue them for writer thread
+     *
+     * @param shared  - buffer is reused by caller, so it's copied to be queued
+     * @param applied - records are applied by caller before write
+     */
+    private Pending submit(final byte[] buffer, final int length, final boolean shared, final boolean applied) {
+        final Pending pending;
+        if (length == 0) {
+            pending = new Pending(new byte[0], 0, false);
+            pending.complete(null);
+        } else if (queue == null) {
+            pending = new Pending(buffer, length, applied);
+            writeBatch(Collections.singletonList(pending));
+        } else {
+            pending = new Pending(shared ? Arrays.copyOf(buffer, length) : buffer, length, applied);
+            synchronized (queue) {
+                last = pending;
+                queue.add(pending);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Wait until all appended records are durable
+     */
+    public void flush() {
+        final Pending pending = last;
+        if (pending != null) await(pending);
+    }
+
+    /**
+     * Seal active segment and switch writes to new one. Caller should not append concurrently.
+     *
+     * @return - id of sealed segment
+     */
+    public long rotate() {
+        flush();
+        synchronized (lock) {
+            try {
+                roll();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return segment - 1;
+        }
+    }
+
+    /**
+     * @return - id of last sealed segment, all segments before it are sealed as well
+     */
+    public long lastSealed() {
+        synchronized (lock) {
+            return segment - 1;
+        }
+    }
+
+    /**
+     * Remove sealed segments up to id inclusive, active segment is never removed
+     */
+    public void delete(final long upTo) {
+        final long lastSealed = lastSealed();
+        for (final long id : segments()) {
+            if (id > upTo || id > lastSealed) break;
+            if (segmentFile(id).delete()) {
+                synchronized (lock) {
+                    sealedSizes.remove(id);
+                }
+            } else {
+                LOGGER.warning("Can't delete commit log segment " + segmentFile(id));
+            }
         }
     }
 
     public void clear() {
+        flush();
+        synchronized (lock) {
+            try {
+                active.close();
+            } catch (final IOException e) {
+                throw new RuntimeException(e);
+            }
+            for (final long id : segments()) {
+                if (!segmentFile(id).delete()) throw new RuntimeException("Can't delete " + segmentFile(id));
+            }
+            sealedSizes.clear();
+            activeSize = 0;
+            active = open(segment, activeSize);
+        }
+    }
+
+    public Iterable<DeleteAndAdd<T>> load() {
+        return load(-1, Long.MAX_VALUE);
+    }
+
+    /**
+     * Records are read and decoded lazily on iteration, so only current one is in memory
+     *
+     * @param after - exclusive segment id
+     * @param upTo  - inclusive segment id
+     * @return records of segments in range
+     */
+    public Iterable<DeleteAndAdd<T>> load(final long after, final long upTo) {
+        return new Iterable<DeleteAndAdd<T>>() {
+            @Override
+            public Iterator<DeleteAndAdd<T>> iterator() {
+                return new RecordIterator(after, upTo);
+            }
+        };
+    }
+
+    /**
+     * Same as {@link #load(long, long)} but records are read and decoded on separate thread,
+     * iterator should be closed when consumer is done
+     *
+     * @param readAhead - max count of decoded records waiting for consumer
+     */
+    ReadAheadIterator<DeleteAndAdd<T>> load(final long after, final long upTo, final int readAhead) {
+        return new ReadAheadIterator<>(new RecordIterator(after, upTo), readAhead, "commit-log-read-ahead");
+    }
+
+    /**
+     * @return - size of active segment
+     */
+    public long size() {
+        synchronized (lock) {
+            return activeSize;
+        }
+    }
+
+    /**
+     * @param after - exclusive segment id
+     * @return - size of segments after id including active one
+     */
+    public long size(final long after) {
+        synchronized (lock) {
+            long size = segment > after ? activeSize : 0;
+            for (final long sealedSize : sealedSizes.tailMap(after, false).values()) size += sealedSize;
+            return size;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (sync != null) sync.shutdownNow();
+        if (writer != null) {
+            queue.add(CLOSE);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (lock) {
+            try {
+                if (durability.mode != Durability.Mode.PER_WRITE) active.force();
+                active.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    static void await(final Future<Void> future) {
         try {
-            fileChannel.truncate(0);
-            fileChannel.force(false);
-        } catch (final IOException e) {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
         }
     }
 
-    public Iterable<DeleteAndAdd<T>> load() {
-        final List<DeleteAndAdd<T>> data = new ArrayList<>();
-        try (Input input = new Input(new BufferedInputStream(new FileInputStream(file)))) {
+    private static Kryo newKryo() {
+        final Kryo kryo = new Kryo();
+        kryo.register(DeleteAndAdd.class);
+        return kryo;
+    }
+
+    private File segmentFile(final long id) {
+        return new File(dir, PREFIX + id + SUFFIX);
+    }
+
+    private List<Long> segments() {
+        final List<Long> ids = new ArrayList<>();
+        final String[] names = dir.list();
+        if (names != null) {
+            for (final String name : names) {
+                if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) continue;
+                try {
+                    ids.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // not a segment
+                }
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    /**
+     * @param size - size of valid records in segment
+     */
+    ActiveSegment open(final long id, final long size) {
+        return mapped ? new MappedSegment(segmentFile(id), size, segmentSize) : new ChannelSegment(segmentFile(id));
+    }
+
+    /**
+     * Serialize record to end of output after space for header, then fill header in place
+     *
+     * @param codec - null to write Kryo object graph
+     * @throws IllegalStateException - if Kryo record has values set in place, they aren't part of it
+     */
+    static <T> void frame(final Kryo kryo, final ColumnCodec<T> codec, final Output output,
+                          final DeleteAndAdd<T> update) {
+        final int start = output.position();
+        if (codec == null && !update.set.isEmpty())
+            throw new IllegalStateException("Values are set in place only with column commit log");
+        output.writeLong(0);
+        if (codec == null) kryo.writeObject(output, update);
+        else codec.write(kryo, output, update);
+        final int end = output.position();
+
+        final int length = end - start - SegmentReader.HEADER_SIZE;
+        final CRC32 crc = new CRC32();
+        crc.update(output.getBuffer(), start + SegmentReader.HEADER_SIZE, length);
+        output.setPosition(start);
+        output.writeInt(length);
+        output.writeInt((int) crc.getValue());
+        output.setPosition(end);
+    }
+
+    /**
+     * Cut torn or damaged tail or not written tail of mapped active segment, so new records are readable
+     *
+     * @return - size of active segment
+     */
+    private long truncateDamaged() {
+        final File file = segmentFile(segment);
+        if (!file.exists()) return 0;
+
+        final long valid = SegmentReader.validate(file);
+        try (final FileChannel fileChannel = new RandomAccessFile(file, "rw").getChannel()) {
+            if (valid < fileChannel.size()) {
+                LOGGER.warning("Truncate commit log segment " + file + " from " + fileChannel.size() + " to " + valid);
+                fileChannel.truncate(valid);
+                fileChannel.force(false);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return valid;
+    }
+
+    /**
+     * Commit log of previous version is single file of Kryo records without framing
+     */
+    private void convertLegacy() {
+        final File legacy = new File(dir, LEGACY_FILENAME);
+        if (!legacy.exists()) return;
+
+        final Kryo kryo = newKryo();
+        try (final Input input = new Input(new BufferedInputStream(new FileInputStream(legacy)));
+             final FileChannel segmentChannel = new FileOutputStream(segmentFile(0)).getChannel()) {
+            final Output output = new Output(OUTPUT_SIZE, -1);
             while (!input.eof()) {
-                data.add(kryo.readObject(input, DeleteAndAdd.class));
+                output.clear();
+                frame(kryo, null, output, kryo.readObject(input, DeleteAndAdd.class));
+                final ByteBuffer record = ByteBuffer.wrap(output.getBuffer(), 0, output.position());
+                while (record.hasRemaining()) segmentChannel.write(record);
             }
-        } catch (FileNotFoundException e) {
-            // no data
+            segmentChannel.force(false);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-        return data;
+        if (!legacy.delete()) throw new RuntimeException("Can't delete " + legacy);
     }
 
-    public long size() {
+    /**
+     * Seal active segment and start next one, caller should hold lock
+     */
+    private void roll() throws IOException {
+        active.force();
+        active.close();
+        sealedSizes.put(segment, activeSize);
+        segment++;
+        activeSize = 0;
+        active = open(segment, activeSize);
+    }
+
+    /**
+     * Cut records of failed write, so next ones are appended after last valid record and readable on replay.
+     * Caller should hold lock.
+     *
+     * @return - false if segment can't be truncated
+     */
+    private boolean discard(final long size) {
         try {
-            return fileChannel.size();
+            active.truncate(size);
+            activeSize = size;
+            return true;
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            LOGGER.warning("Can't cut failed write of commit log segment " + segmentFile(segment) + ": " + e);
+            return false;
+        }
+    }
+
+    private void force() {
+        try {
+            synchronized (lock) {
+                active.force();
+            }
+        } catch (IOException e) {
+            LOGGER.warning("can't force commit log: " + e);
+        }
+    }
+
+    private void writeLoop() {
+        final List<Pending> batch = new ArrayList<>();
+        boolean closed = false;
+        while (!closed) {
+            try {
+                batch.add(queue.take());
+                if (groupCommit.maxWaitMillis > 0) {
+                    final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(groupCommit.maxWaitMillis);
+                    while (batch.size() < groupCommit.maxBatch) {
+                        final Pending pending = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                        if (pending == null) break;
+                        batch.add(pending);
+                    }
+                } else {
+                    queue.drainTo(batch, groupCommit.maxBatch - 1);
+                }
+            } catch (InterruptedException e) {
+                closed = true;
+            }
+
+            closed |= batch.remove(CLOSE);
+            writeBatch(batch);
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(final List<Pending> batch) {
+        if (batch.isEmpty()) return;
+
+        final long start = System.currentTimeMillis();
+        final ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+        long bytes = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = ByteBuffer.wrap(batch.get(i).record, 0, batch.get(i).length);
+            bytes += batch.get(i).length;
+        }
+
+        IOException error = null;
+        synchronized (lock) {
+            final long size = activeSize;
+            try {
+                active.write(buffers, bytes);
+                activeSize += bytes;
+                if (activeSize >= segmentSize) roll();
+                else if (durability.mode == Durability.Mode.PER_WRITE) active.force();
+            } catch (IOException e) {
+                error = e;
+                boolean applied = queue != null;
+                for (final Pending pending : batch) applied |= pending.applied;
+                if (!discard(size) || applied) failure = e;
+            }
+        }
+        for (final Pending pending : batch) pending.complete(error);
+
+        if (useLog)
+            LOGGER.info("write " + batch.size() + " records " + (bytes / 1024) + " kb in "
+                    + (System.currentTimeMillis() - start) + " msec");
+    }
+
+    /**
+     * Reads segments one by one, stops at first damaged record of active segment
+     *
+     * @throws IllegalStateException - on damaged record in sealed segment
+     */
+    private class RecordIterator implements Iterator<DeleteAndAdd<T>>, Closeable {
+
+        private final Kryo kryo = newKryo();
+        private final Iterator<Long> ids;
+        private long id;
+        private File file;
+        private SegmentReader reader;
+        private DeleteAndAdd<T> next;
+        private boolean done;
+
+        RecordIterator(final long after, final long upTo) {
+            final List<Long> range = new ArrayList<>();
+            for (final long id : segments()) if (id > after && id <= upTo) range.add(id);
+            ids = range.iterator();
         }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !done) next = read();
+            return next != null;
+        }
+
+        @Override
+        public DeleteAndAdd<T> next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            final DeleteAndAdd<T> result = next;
+            next = null;
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private DeleteAndAdd<T> read() {
+            try {
+                while (true) {
+                    if (reader == null) {
+                        if (!ids.hasNext()) {
+                            done = true;
+                            return null;
+                        }
+                        id = ids.next();
+                        file = segmentFile(id);
+                        try {
+                            reader = new SegmentReader(file, mapped);
+                        } catch (FileNotFoundException e) {
+                            continue; // removed in meantime
+                        }
+                    }
+
+                    final byte[] payload = reader.next();
+                    if (payload != null) return decode(payload);
+
+                    reader.close();
+                    if (reader.damaged()) {
+                        if (id <= lastSealed()) throw new IllegalStateException("Commit log segment " + file
+                                + " is damaged after " + reader.valid() + " bytes, records after it are lost");
+                        LOGGER.warning("Commit log segment " + file + " is damaged after " + reader.valid()
+                                + " bytes, ignore rest of commit log");
+                        done = true;
+                        return null;
+                    }
+                    reader = null;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (reader != null) reader.close();
+            done = true;
+        }
+
+        @SuppressWarnings("unchecked")
+        private DeleteAndAdd<T> decode(final byte[] payload) {
+            if (!ColumnCodec.marked(payload)) return kryo.readObject(new Input(payload), DeleteAndAdd.class);
+
+            if (codec == null)
+                throw new IllegalStateException("Commit log " + file + " has column records, data class is required");
+            return codec.read(kryo, new Input(payload));
+        }
+
     }
+
+    /**
+     * Records framed one by one and written by {@link #append(Batch)}, so record which can't be serialized
+     * is rejected before caller applies it. Not thread safe.
+     */
+    public class Batch {
+
+        private final Output output = new Output(BATCH_SIZE, -1);
+
+        /**
+         * @throws RuntimeException - if record can't be serialized, batch is not changed
+         */
+        public void add(final DeleteAndAdd<T> update) {
+            final int last = output.position();
+            try {
+                synchronized (kryo) {
+                    frame(kryo, codec, output, update);
+                }
+            } catch (RuntimeException e) {
+                output.setPosition(last);
+                throw e;
+            }
+        }
+
+    }
+
+    /**
+     * Record waiting to be durable
+     */
+    private static class Pending implements Future<Void> {
+
+        private final byte[] record;
+        private final int length;
+        private final boolean applied;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile IOException error;
+
+        /**
+         * @param record - framed records, without group commit it's shared buffer valid only until write
+         * @param length  - bytes of record to write
+         * @param applied - records are applied by caller before write
+         */
+        Pending(final byte[] record, final int length, final boolean applied) {
+            this.record = record;
+            this.length = length;
+            this.applied = applied;
+        }
+
+        void complete(final IOException error) {
+            this.error = error;
+            done.countDown();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public Void get() throws InterruptedException, ExecutionException {
+            done.await();
+            return result();
+        }
+
+        @Override
+        public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit)) throw new TimeoutException();
+            return result();
+        }
+
+        private Void result() throws ExecutionException {
+            if (error != null) throw new ExecutionException(error);
+            return null;
+        }
+
+    }
+
 }
@@ -0,0 +1,60 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+/**
+ * When {@link MutableFastSelect} rewrites not deleted rows to new data in background. Positions of rows
+ * are changed after compaction, so they are valid only inside {@link Selector} or {@link Modifier}.
+ *
+ * @see MutableFastSelect#compact()
+ */
+@SuppressWarnings("WeakerAccess")
+public final class Compaction {
+
+    /**
+     * only on {@link MutableFastSelect#compact()}
+     */
+    public static final Compaction DISABLED = new Compaction(1, Integer.MAX_VALUE);
+
+    public final double deadRatio;
+    public final int minRows;
+
+    /**
+     * @param deadRatio - start compaction when part of deleted rows is more than that, from 0 to 1
+     * @param minRows   - don't compact data smaller than that
+     */
+    public Compaction(final double deadRatio, final int minRows) {
+        if (!(deadRatio > 0 && deadRatio <= 1))
+            throw new IllegalArgumentException("deadRatio should be in (0, 1], but: " + deadRatio);
+        if (minRows < 0) throw new IllegalArgumentException("minRows can't be negative, but: " + minRows);
+        this.deadRatio = deadRatio;
+        this.minRows = minRows;
+    }
+
+    public boolean enabled() {
+        return minRows < Integer.MAX_VALUE;
+    }
+
+    boolean needed(final int rows, final int dead) {
+        return enabled() && rows >= minRows && dead > deadRatio * rows;
+    }
+
+    @Override
+    public String toString() {
+        return "Compaction {deadRatio: " + deadRatio + ", minRows: " + minRows + "}";
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Points of {@link CommitLog} where data was compacted: compaction-N.bin means that after segment N
+ * rows listed in file were removed, positions in later segments are after compaction.
+ * Replay of commit log should compact data at same points to get same positions.
+ * <p>
+ * Format: int count, sorted removed positions, long CRC32.
+ */
+class Compactions {
+
+    private static final Logger LOGGER = Logger.getAnonymousLogger();
+
+    private static final String PREFIX = "compaction-";
+    private static final String SUFFIX = ".bin";
+    private static final String TMP_FILENAME = PREFIX + "next" + SUFFIX + ".tmp";
+
+    private final File dir;
+
+    Compactions(final File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * @return - sorted segments with compaction in range (after, upTo]
+     */
+    List<Long> between(final long after, final long upTo) {
+        final List<Long> segments = new ArrayList<>();
+        final String[] names = dir.list();
+        if (names != null) {
+            for (final String name : names) {
+                final long segment = parse(name);
+                if (segment > after && segment <= upTo) segments.add(segment);
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * @return - sorted positions removed by compaction after segment
+     */
+    int[] removed(final long segment) {
+        final File file = file(segment);
+        final CRC32 crc = new CRC32();
+        try (final DataInputStream input = new DataInputStream(
+                new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), crc))) {
+            final int[] removed = new int[input.readInt()];
+            for (int i = 0; i < removed.length; i++) removed[i] = input.readInt();
+            final long expected = crc.getValue();
+            if (input.readLong() != expected) throw new IllegalStateException("Damaged " + file);
+            return removed;
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't read " + file, e);
+        }
+    }
+
+    /**
+     * Write removed positions to temp file, they are not used until {@link #commit(long)}
+     */
+    void prepare(final int[] removed) throws IOException {
+        final File tmp = new File(dir, TMP_FILENAME);
+        final CRC32 crc = new CRC32();
+        try (final FileOutputStream fileOutputStream = new FileOutputStream(tmp)) {
+            final DataOutputStream output = new DataOutputStream(
+                    new CheckedOutputStream(new BufferedOutputStream(fileOutputStream), crc));
+            output.writeInt(removed.length);
+            for (final int position : removed) output.writeInt(position);
+            output.flush();
+            output.writeLong(crc.getValue());
+            output.flush();
+            fileOutputStream.getChannel().force(true);
+        }
+    }
+
+    /**
+     * Atomically make prepared compaction visible for replay after segment
+     */
+    void commit(final long segment) throws IOException {
+        Files.move(new File(dir, TMP_FILENAME).toPath(), file(segment).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        Snapshots.forceDir(dir);
+    }
+
+    /**
+     * Delete compactions which are included in data file
+     */
+    void delete(final long upTo) {
+        for (final long segment : between(Long.MIN_VALUE, upTo)) {
+            final File file = file(segment);
+            if (!file.delete()) LOGGER.warning("Can't delete " + file);
+        }
+    }
+
+    private static long parse(final String name) {
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) return Long.MIN_VALUE;
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    private File file(final long segment) {
+        return new File(dir, PREFIX + segment + SUFFIX);
+    }
+
+}
@@ -24,10 +24,20 @@ public class DeleteAndAdd<T> implements Serializable {
 
     public final List<Integer> delete;
     public final List<T> add;
+    /**
+     * values set in place, applied after deletes and adds to rows which are not deleted.
+     * Not part of Kryo record, written only by {@link ColumnCodec}
+     */
+    public final transient List<ColumnUpdate> set;
 
     public DeleteAndAdd(List<Integer> delete, List<T> add) {
+        this(delete, add, Collections.<ColumnUpdate>emptyList());
+    }
+
+    public DeleteAndAdd(List<Integer> delete, List<T> add, List<ColumnUpdate> set) {
         this.delete = new ArrayList<>(delete);
         this.add = new ArrayList<>(add);
+        this.set = new ArrayList<>(set);
     }
 
     /**
@@ -36,6 +46,7 @@ public class DeleteAndAdd<T> implements Serializable {
     private DeleteAndAdd() {
         delete = Collections.emptyList();
         add = Collections.emptyList();
+        set = Collections.emptyList();
     }
 
 }
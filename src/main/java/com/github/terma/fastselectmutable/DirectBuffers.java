@@ -0,0 +1,117 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.*;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Allocates int and long buffers on heap or in direct memory and remembers direct memory behind them,
+ * so owner could release it when buffer is replaced or owner is not needed instead of waiting for GC.
+ * Direct memory is limited by -XX:MaxDirectMemorySize and GC doesn't see its pressure.
+ * <p>
+ * Released buffer should not be used, its memory could be reused by anything.
+ * <p>
+ * Thread safe, but release should be done only when nobody reads buffer.
+ */
+class DirectBuffers {
+
+    private final boolean offHeap;
+    private final Map<Buffer, ByteBuffer> direct = new IdentityHashMap<>();
+
+    /**
+     * @param offHeap - allocate in direct memory, otherwise on heap
+     */
+    DirectBuffers(final boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    IntBuffer ints(final int length) {
+        if (!offHeap) return IntBuffer.allocate(length);
+        if (length > Integer.MAX_VALUE / 4) throw new IllegalStateException("Off heap buffer is too big: " + length);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(length * 4).order(ByteOrder.nativeOrder());
+        return remember(buffer.asIntBuffer(), buffer);
+    }
+
+    LongBuffer longs(final int length) {
+        if (!offHeap) return LongBuffer.allocate(length);
+        if (length > Integer.MAX_VALUE / 8) throw new IllegalStateException("Off heap buffer is too big: " + length);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(length * 8).order(ByteOrder.nativeOrder());
+        return remember(buffer.asLongBuffer(), buffer);
+    }
+
+    private synchronized <B extends Buffer> B remember(final B view, final ByteBuffer buffer) {
+        direct.put(view, buffer);
+        return view;
+    }
+
+    /**
+     * Release direct memory of buffer allocated here, nothing for heap one
+     */
+    void free(final Buffer view) {
+        final ByteBuffer buffer;
+        synchronized (this) {
+            buffer = direct.remove(view);
+        }
+        if (buffer != null) release(buffer);
+    }
+
+    /**
+     * Release direct memory of all buffers allocated here
+     */
+    void freeAll() {
+        final ByteBuffer[] buffers;
+        synchronized (this) {
+            buffers = direct.values().toArray(new ByteBuffer[direct.size()]);
+            direct.clear();
+        }
+        for (final ByteBuffer buffer : buffers) release(buffer);
+    }
+
+    /**
+     * Release memory of direct or mapped buffer without waiting for GC, best effort as there is no public API
+     * for that: Unsafe.invokeCleaner on Java 9+, cleaner of buffer before. If none is available
+     * memory is released when buffer is collected.
+     */
+    static void release(final ByteBuffer buffer) {
+        if (!buffer.isDirect()) return;
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = null;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                // before Java 9
+            }
+            if (invokeCleaner != null) {
+                final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            } else {
+                final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                final Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // released by GC
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+/**
+ * When {@link CommitLog} calls {@link java.nio.channels.FileChannel#force(boolean)}
+ *
+ * @see CommitLog
+ * @see MutableFastSelect
+ */
+@SuppressWarnings("WeakerAccess")
+public final class Durability {
+
+    public enum Mode {
+        /**
+         * force after each write (or each batch for {@link GroupCommit}), nothing is lost
+         */
+        PER_WRITE,
+        /**
+         * force by background timer, last {@link #periodMillis} of writes could be lost
+         */
+        PERIODIC,
+        /**
+         * never force, flush is up to OS
+         */
+        OS
+    }
+
+    public static final Durability PER_WRITE = new Durability(Mode.PER_WRITE, 0);
+    public static final Durability OS = new Durability(Mode.OS, 0);
+
+    public final Mode mode;
+    public final long periodMillis;
+
+    private Durability(final Mode mode, final long periodMillis) {
+        this.mode = mode;
+        this.periodMillis = periodMillis;
+    }
+
+    public static Durability periodic(final long periodMillis) {
+        if (periodMillis < 1)
+            throw new IllegalArgumentException("periodMillis should be positive, but: " + periodMillis);
+        return new Durability(Mode.PERIODIC, periodMillis);
+    }
+
+    @Override
+    public String toString() {
+        return "Durability {mode: " + mode + (mode == Mode.PERIODIC ? ", periodMillis: " + periodMillis : "") + "}";
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+/**
+ * Group commit settings for {@link CommitLog}. When enabled records from concurrent writers
+ * are queued and appended by one writer thread with single {@link java.nio.channels.FileChannel#force(boolean)}
+ * per batch, each writer is released when its record is durable.
+ *
+ * @see CommitLog
+ * @see MutableFastSelect
+ */
+@SuppressWarnings("WeakerAccess")
+public final class GroupCommit {
+
+    /**
+     * every record is written and forced by caller thread
+     */
+    public static final GroupCommit DISABLED = new GroupCommit(1, 0);
+
+    public final int maxBatch;
+    public final long maxWaitMillis;
+
+    /**
+     * @param maxBatch      - max count of records written with one force, 1 to disable group commit
+     * @param maxWaitMillis - how long writer thread waits for more records before write not full batch,
+     *                      0 to write whatever is queued at the moment
+     */
+    public GroupCommit(final int maxBatch, final long maxWaitMillis) {
+        if (maxBatch < 1) throw new IllegalArgumentException("maxBatch should be positive, but: " + maxBatch);
+        if (maxWaitMillis < 0)
+            throw new IllegalArgumentException("maxWaitMillis can't be negative, but: " + maxWaitMillis);
+        this.maxBatch = maxBatch;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    public boolean enabled() {
+        return maxBatch > 1;
+    }
+
+    @Override
+    public String toString() {
+        return "GroupCommit {maxBatch: " + maxBatch + ", maxWaitMillis: " + maxWaitMillis + "}";
+    }
+
+}
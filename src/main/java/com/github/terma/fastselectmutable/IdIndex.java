@@ -0,0 +1,598 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+import com.github.terma.fastselect.data.Data;
+import com.github.terma.fastselect.data.IntData;
+import com.github.terma.fastselect.data.LongData;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+/**
+ * Open addressing map from id to positions of rows. Ids are not stored, they are compared with id column
+ * of data, so index keeps only two ints per slot: hash of id and single position or reference
+ * to overflow area for rare case of several positions per id. Same map on other column is used
+ * by {@link ColumnPositions}.
+ * <p>
+ * Slot value: 0 - empty, positive - position + 1, negative - -(offset + 1) in overflow where
+ * overflow[offset] is count of positions, overflow[offset + 1] is capacity followed by positions.
+ * Full list is moved to end of overflow with doubled capacity, so adding is amortized constant
+ * even for thousands of positions per value of column.
+ * <p>
+ * Could be saved to file and loaded back with memory mapping, format:
+ * magic, version, rows, size, capacity, overflow size, slots, hashes, overflow, CRC32 of all before.
+ * <p>
+ * Off heap index keeps slots, hashes and overflow in direct memory, limited by -XX:MaxDirectMemorySize.
+ * Memory of replaced buffers is released when they grow, rest by {@link #free()}.
+ * <p>
+ * For long and int columns keys are hashed and compared as primitives read from column array, without boxing,
+ * lookup by any integral {@link Number} is compared by value.
+ * <p>
+ * Null ids and values of column are indexed as any other value with hash 0.
+ */
+class IdIndex {
+
+    private static final int MAGIC = 0x4D465349;
+    private static final int VERSION = 2;
+    private static final int HEADER_INTS = 6;
+    private static final int MIN_CAPACITY = 16;
+    /**
+     * count and capacity before positions of overflow list
+     */
+    private static final int LIST_HEADER = 2;
+
+    private static final int OBJECT = 0;
+    private static final int LONG = 1;
+    private static final int INT = 2;
+
+    private final Data ids;
+    private final int kind;
+    private final DirectBuffers buffers;
+
+    private IntBuffer slots;
+    private IntBuffer hashes;
+    private int mask;
+    private int size;
+
+    private IntBuffer overflow;
+    private int overflowSize;
+    private int overflowGarbage;
+
+    IdIndex(final Data ids, final int expected) {
+        this(ids, expected, false);
+    }
+
+    /**
+     * @param offHeap - keep index in direct memory
+     */
+    IdIndex(final Data ids, final int expected, final boolean offHeap) {
+        this.ids = ids;
+        this.kind = kind(ids);
+        this.buffers = new DirectBuffers(offHeap);
+        final int capacity = capacity(expected);
+        slots = ints(capacity);
+        hashes = ints(capacity);
+        mask = capacity - 1;
+        overflow = ints(MIN_CAPACITY);
+    }
+
+    private IdIndex(final Data ids, final DirectBuffers buffers, final IntBuffer slots, final IntBuffer hashes,
+                    final int size, final IntBuffer overflow, final int overflowSize) {
+        this.ids = ids;
+        this.kind = kind(ids);
+        this.buffers = buffers;
+        this.slots = slots;
+        this.hashes = hashes;
+        this.mask = slots.capacity() - 1;
+        this.size = size;
+        this.overflow = overflow;
+        this.overflowSize = overflowSize;
+    }
+
+    /**
+     * @return - hash of id or 0 for null
+     */
+    static int hash(final Object id) {
+        return id == null ? 0 : mix(id.hashCode());
+    }
+
+    /**
+     * Same as {@link #hash(Object)} of value, but without boxing for long and int columns
+     *
+     * @return - hash of value at position or 0 for null
+     */
+    static int hash(final Data column, final int position) {
+        if (column instanceof LongData) return hashLong(((LongData) column).data[position]);
+        if (column instanceof IntData) return mix(((IntData) column).data[position]);
+        return hash(column.get(position));
+    }
+
+    /**
+     * Same as {@link #hash(Object)} of {@link Long}
+     */
+    private static int hashLong(final long value) {
+        return mix((int) (value ^ (value >>> 32)));
+    }
+
+    private static int mix(final int hashCode) {
+        final int h = hashCode * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int kind(final Data ids) {
+        if (ids instanceof LongData) return LONG;
+        if (ids instanceof IntData) return INT;
+        return OBJECT;
+    }
+
+    /**
+     * @return - count of ids
+     */
+    int size() {
+        return size;
+    }
+
+    boolean contains(final Object id) {
+        return find(id) >= 0;
+    }
+
+    /**
+     * @return - count of positions for id
+     */
+    int count(final Object id) {
+        final int slot = find(id);
+        if (slot < 0) return 0;
+        final int value = slots.get(slot);
+        return value > 0 ? 1 : overflow.get(-value - 1);
+    }
+
+    /**
+     * @return - first position of id or -1
+     */
+    int first(final Object id) {
+        final int slot = find(id);
+        return slot < 0 ? -1 : firstPosition(slots.get(slot));
+    }
+
+    /**
+     * @return - first position of id or -1
+     */
+    int first(final long id) {
+        final int slot = find(id);
+        return slot < 0 ? -1 : firstPosition(slots.get(slot));
+    }
+
+    /**
+     * @return - positions of id in order of adding, empty if no id
+     */
+    int[] get(final Object id) {
+        final int slot = find(id);
+        if (slot < 0) return new int[0];
+        return positions(slots.get(slot));
+    }
+
+    /**
+     * @return - positions of id in order of adding, empty if no id
+     */
+    int[] get(final long id) {
+        final int slot = find(id);
+        if (slot < 0) return new int[0];
+        return positions(slots.get(slot));
+    }
+
+    /**
+     * @return - ids in order of slots
+     */
+    List<Object> keys() {
+        final List<Object> keys = new ArrayList<>(size);
+        for (int slot = 0; slot < slots.capacity(); slot++) {
+            final int value = slots.get(slot);
+            if (value != 0) keys.add(ids.get(firstPosition(value)));
+        }
+        return keys;
+    }
+
+    /**
+     * Add position of id from column
+     */
+    void add(final int position) {
+        final int hash = hash(ids, position);
+        insert(findAt(position, hash), hash, position);
+    }
+
+    /**
+     * Add position when hash of its id is known, id is read from data only on hash collision
+     */
+    void addAt(final int hash, final int position) {
+        Object id = null;
+        boolean loaded = false;
+        int slot = hash & mask;
+        while (true) {
+            final int value = slots.get(slot);
+            if (value == 0) {
+                slot = -slot - 1;
+                break;
+            }
+            if (hashes.get(slot) == hash) {
+                if (kind != OBJECT) {
+                    if (key(position) == key(firstPosition(value))) break;
+                } else {
+                    if (!loaded) {
+                        id = ids.get(position);
+                        loaded = true;
+                    }
+                    if (Objects.equals(id, ids.get(firstPosition(value)))) break;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+        insert(slot, hash, position);
+    }
+
+    private void insert(final int slot, final int hash, final int position) {
+        if (slot < 0) {
+            final int free = -slot - 1;
+            slots.put(free, position + 1);
+            hashes.put(free, hash);
+            size++;
+            if (size > slots.capacity() / 2) resize(slots.capacity() * 2);
+            return;
+        }
+
+        final int value = slots.get(slot);
+        if (value > 0) {
+            final int offset = allocate(LIST_HEADER + 2);
+            overflow.put(offset, 2);
+            overflow.put(offset + 1, 2);
+            overflow.put(offset + LIST_HEADER, value - 1);
+            overflow.put(offset + LIST_HEADER + 1, position);
+            slots.put(slot, -offset - 1);
+            return;
+        }
+
+        int offset = -value - 1;
+        final int count = overflow.get(offset);
+        final int capacity = overflow.get(offset + 1);
+        if (count == capacity) {
+            final int grown = allocate(LIST_HEADER + capacity * 2);
+            copy(overflow, offset + LIST_HEADER, overflow, grown + LIST_HEADER, count);
+            overflow.put(grown + 1, capacity * 2);
+            overflowGarbage += LIST_HEADER + capacity;
+            offset = grown;
+            slots.put(slot, -offset - 1);
+        }
+        overflow.put(offset, count + 1);
+        overflow.put(offset + LIST_HEADER + count, position);
+        if (overflowGarbage > MIN_CAPACITY && overflowGarbage > overflowSize / 2) compactOverflow();
+    }
+
+    /**
+     * Remove position of id from column, id is removed when no more positions
+     */
+    void remove(final int position) {
+        final int slot = findAt(position, hash(ids, position));
+        if (slot < 0) return;
+
+        final int value = slots.get(slot);
+        if (value > 0) {
+            if (value - 1 == position) removeSlot(slot);
+            return;
+        }
+
+        final int offset = -value - 1;
+        final int count = overflow.get(offset);
+        final int start = offset + LIST_HEADER;
+        int i = 0;
+        while (i < count && overflow.get(start + i) != position) i++;
+        if (i == count) return;
+
+        if (count == 2) {
+            slots.put(slot, overflow.get(start + (1 - i)) + 1);
+            overflowGarbage += LIST_HEADER + overflow.get(offset + 1);
+        } else {
+            copy(overflow, start + i + 1, overflow, start + i, count - i - 1);
+            overflow.put(offset, count - 1);
+        }
+        if (overflowGarbage > MIN_CAPACITY && overflowGarbage > overflowSize / 2) compactOverflow();
+    }
+
+    /**
+     * backward shift deletion, keeps probe chains without tombstones
+     */
+    private void removeSlot(int slot) {
+        size--;
+        int next = (slot + 1) & mask;
+        while (slots.get(next) != 0) {
+            final int home = hashes.get(next) & mask;
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                slots.put(slot, slots.get(next));
+                hashes.put(slot, hashes.get(next));
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+        slots.put(slot, 0);
+        hashes.put(slot, 0);
+    }
+
+    void save(final File file, final int rows) throws IOException {
+        compactOverflow();
+
+        final CRC32 crc = new CRC32();
+        try (final FileChannel channel = new RandomAccessFile(file, "rw").getChannel()) {
+            channel.truncate(0);
+            final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            final IntBuffer ints = buffer.asIntBuffer();
+
+            final int[] header = new int[]{MAGIC, VERSION, rows, size, slots.capacity(), overflowSize};
+            writeInts(channel, buffer, ints, crc, IntBuffer.wrap(header), header.length);
+            writeInts(channel, buffer, ints, crc, slots, slots.capacity());
+            writeInts(channel, buffer, ints, crc, hashes, hashes.capacity());
+            writeInts(channel, buffer, ints, crc, overflow, overflowSize);
+
+            final ByteBuffer checksum = ByteBuffer.allocate(8);
+            checksum.putLong(crc.getValue()).flip();
+            while (checksum.hasRemaining()) channel.write(checksum);
+            channel.force(true);
+        }
+    }
+
+    /**
+     * @return - index or null if file is absent, damaged or built for different count of rows
+     */
+    static IdIndex load(final File file, final Data ids, final int rows) {
+        return load(file, ids, rows, false);
+    }
+
+    /**
+     * @param offHeap - keep loaded index in direct memory
+     * @return - index or null if file is absent, damaged or built for different count of rows
+     */
+    static IdIndex load(final File file, final Data ids, final int rows, final boolean offHeap) {
+        if (!file.exists()) return null;
+
+        try (final FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            final long length = channel.size();
+            if (length < HEADER_INTS * 4 + 8) return null;
+
+            final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            try {
+                return read(mapped, length, ids, rows, new DirectBuffers(offHeap));
+            } finally {
+                // copied, don't keep file mapped until GC
+                DirectBuffers.release(mapped);
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static IdIndex read(final MappedByteBuffer mapped, final long length, final Data ids, final int rows,
+                                final DirectBuffers buffers) {
+        if (checksum(mapped, length - 8) != mapped.getLong((int) length - 8)) return null;
+
+        final IntBuffer ints = mapped.asIntBuffer();
+        if (ints.get() != MAGIC || ints.get() != VERSION || ints.get() != rows) return null;
+        final int size = ints.get();
+        final int capacity = ints.get();
+        final int overflowSize = ints.get();
+        if (Integer.bitCount(capacity) != 1 || length != (HEADER_INTS + 2L * capacity + overflowSize) * 4 + 8)
+            return null;
+
+        final IntBuffer slots = read(ints, capacity, capacity, buffers);
+        final IntBuffer hashes = read(ints, capacity, capacity, buffers);
+        final IntBuffer overflow = read(ints, overflowSize, Math.max(MIN_CAPACITY, overflowSize), buffers);
+        return new IdIndex(ids, buffers, slots, hashes, size, overflow, overflowSize);
+    }
+
+    private static long checksum(final ByteBuffer buffer, final long length) {
+        final CRC32 crc = new CRC32();
+        final byte[] chunk = new byte[64 * 1024];
+        final ByteBuffer view = buffer.duplicate();
+        view.position(0);
+        long remaining = length;
+        while (remaining > 0) {
+            final int read = (int) Math.min(chunk.length, remaining);
+            view.get(chunk, 0, read);
+            crc.update(chunk, 0, read);
+            remaining -= read;
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * @return - next length ints of source in new buffer of capacity
+     */
+    private static IntBuffer read(final IntBuffer source, final int length, final int capacity,
+                                  final DirectBuffers buffers) {
+        final IntBuffer target = buffers.ints(capacity);
+        final IntBuffer part = source.duplicate();
+        part.limit(part.position() + length);
+        target.put(part);
+        source.position(source.position() + length);
+        return target;
+    }
+
+    private static void writeInts(final FileChannel channel, final ByteBuffer buffer, final IntBuffer ints,
+                                  final CRC32 crc, final IntBuffer values, final int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            final int count = Math.min(ints.capacity(), length - offset);
+            final IntBuffer part = values.duplicate();
+            part.limit(offset + count).position(offset);
+            ints.clear();
+            ints.put(part);
+            buffer.clear();
+            buffer.limit(count * 4);
+            crc.update(buffer.array(), 0, count * 4);
+            while (buffer.hasRemaining()) channel.write(buffer);
+            offset += count;
+        }
+    }
+
+    private IntBuffer ints(final int length) {
+        return buffers.ints(length);
+    }
+
+    /**
+     * Release direct memory of off heap index, it can't be used after that
+     */
+    void free() {
+        buffers.freeAll();
+    }
+
+    /**
+     * Same as {@link System#arraycopy(Object, int, Object, int, int)} for target before source or not overlapped
+     */
+    private static void copy(final IntBuffer source, final int from, final IntBuffer target, final int to,
+                             final int length) {
+        for (int i = 0; i < length; i++) target.put(to + i, source.get(from + i));
+    }
+
+    private static int capacity(final int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity / 2 < expected) capacity <<= 1;
+        return capacity;
+    }
+
+    /**
+     * @return - slot of id or negative if no such
+     */
+    private int find(final Object id) {
+        if (kind == OBJECT) return find(id, hash(id));
+        if (!(id instanceof Long || id instanceof Integer || id instanceof Short || id instanceof Byte)) return -1;
+        return find(((Number) id).longValue());
+    }
+
+    /**
+     * @return - slot of id or negative if no such
+     */
+    private int find(final long id) {
+        if (kind == OBJECT) return find((Object) id, hash((Object) id));
+        if (kind == INT && id != (int) id) return -1;
+        return findKey(id, kind == LONG ? hashLong(id) : mix((int) id));
+    }
+
+    /**
+     * @return - slot of id at position or -(free slot + 1)
+     */
+    private int findAt(final int position, final int hash) {
+        return kind == OBJECT ? find(ids.get(position), hash) : findKey(key(position), hash);
+    }
+
+    /**
+     * @return - slot of primitive id or -(free slot + 1)
+     */
+    private int findKey(final long key, final int hash) {
+        int slot = hash & mask;
+        while (true) {
+            final int value = slots.get(slot);
+            if (value == 0) return -slot - 1;
+            if (hashes.get(slot) == hash && key(firstPosition(value)) == key) return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private long key(final int position) {
+        return kind == LONG ? ((LongData) ids).data[position] : ((IntData) ids).data[position];
+    }
+
+    /**
+     * @return - slot of id or -(free slot + 1)
+     */
+    private int find(final Object id, final int hash) {
+        int slot = hash & mask;
+        while (true) {
+            final int value = slots.get(slot);
+            if (value == 0) return -slot - 1;
+            if (hashes.get(slot) == hash && Objects.equals(id, ids.get(firstPosition(value)))) return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private int firstPosition(final int value) {
+        return value > 0 ? value - 1 : overflow.get(-value - 1 + LIST_HEADER);
+    }
+
+    private int[] positions(final int value) {
+        if (value > 0) return new int[]{value - 1};
+        final int offset = -value - 1;
+        final int[] positions = new int[overflow.get(offset)];
+        for (int i = 0; i < positions.length; i++) positions[i] = overflow.get(offset + LIST_HEADER + i);
+        return positions;
+    }
+
+    private int allocate(final int length) {
+        if (overflowSize + length > overflow.capacity()) {
+            final IntBuffer grown = ints(Math.max(overflow.capacity() * 2, overflowSize + length));
+            copy(overflow, 0, grown, 0, overflowSize);
+            buffers.free(overflow);
+            overflow = grown;
+        }
+        final int offset = overflowSize;
+        overflowSize += length;
+        return offset;
+    }
+
+    private void compactOverflow() {
+        if (overflowGarbage == 0) return;
+
+        final IntBuffer compacted = ints(Math.max(MIN_CAPACITY, overflowSize - overflowGarbage));
+        int compactedSize = 0;
+        for (int slot = 0; slot < slots.capacity(); slot++) {
+            final int value = slots.get(slot);
+            if (value >= 0) continue;
+            final int offset = -value - 1;
+            final int count = overflow.get(offset);
+            compacted.put(compactedSize, count);
+            compacted.put(compactedSize + 1, count);
+            copy(overflow, offset + LIST_HEADER, compacted, compactedSize + LIST_HEADER, count);
+            slots.put(slot, -compactedSize - 1);
+            compactedSize += LIST_HEADER + count;
+        }
+        buffers.free(overflow);
+        overflow = compacted;
+        overflowSize = compactedSize;
+        overflowGarbage = 0;
+    }
+
+    private void resize(final int capacity) {
+        final IntBuffer oldSlots = slots;
+        final IntBuffer oldHashes = hashes;
+        slots = ints(capacity);
+        hashes = ints(capacity);
+        mask = capacity - 1;
+        for (int i = 0; i < oldSlots.capacity(); i++) {
+            final int value = oldSlots.get(i);
+            if (value == 0) continue;
+            int slot = oldHashes.get(i) & mask;
+            while (slots.get(slot) != 0) slot = (slot + 1) & mask;
+            slots.put(slot, value);
+            hashes.put(slot, oldHashes.get(i));
+        }
+        buffers.free(oldSlots);
+        buffers.free(oldHashes);
+    }
+
+}
@@ -0,0 +1,35 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+/**
+ * Type of secondary index on column
+ *
+ * @see MutableFastSelectBuilder#index(String, IndexType)
+ */
+public enum IndexType {
+
+    /**
+     * only lookup by value, {@link ColumnIndex#get(Object)}
+     */
+    HASH,
+
+    /**
+     * lookup by value and range, {@link ColumnIndex#range(Object, Object)}, needs comparable values
+     */
+    SORTED
+
+}
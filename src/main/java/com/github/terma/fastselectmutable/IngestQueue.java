@@ -0,0 +1,67 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+/**
+ * Settings of queue for {@link MutableFastSelect#modifyAsync(Modifier)}. Modifiers are queued and applied
+ * by one writer thread in batches with {@link MutableFastSelect#modifyAll(java.util.Collection)}.
+ *
+ * @see MutableFastSelectBuilder#ingestQueue(IngestQueue)
+ */
+@SuppressWarnings("WeakerAccess")
+public final class IngestQueue {
+
+    public static final IngestQueue DEFAULT = new IngestQueue(1024, Backpressure.BLOCK);
+
+    public final int capacity;
+    public final Backpressure backpressure;
+
+    /**
+     * @param capacity     - max count of queued modifiers, also max size of batch
+     * @param backpressure - what to do when queue is full
+     */
+    public IngestQueue(final int capacity, final Backpressure backpressure) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity should be positive, but: " + capacity);
+        if (backpressure == null) throw new IllegalArgumentException("backpressure can't be null");
+        this.capacity = capacity;
+        this.backpressure = backpressure;
+    }
+
+    @Override
+    public String toString() {
+        return "IngestQueue {capacity: " + capacity + ", backpressure: " + backpressure + "}";
+    }
+
+    public enum Backpressure {
+
+        /**
+         * caller waits for free space in queue
+         */
+        BLOCK,
+
+        /**
+         * caller gets {@link java.util.concurrent.RejectedExecutionException}
+         */
+        REJECT,
+
+        /**
+         * oldest queued modifier is dropped, its future fails with {@link java.util.concurrent.RejectedExecutionException}
+         */
+        DROP_OLDEST
+
+    }
+
+}
@@ -0,0 +1,204 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded queue of modifiers drained by one writer thread, each drained batch is applied
+ * by {@link MutableFastSelect#modifyAll(java.util.Collection)} and futures are completed after it,
+ * when changes are durable and visible.
+ * <p>
+ * Batch which fails with runtime exception fails its futures and writer goes on. Any other error fails batch and
+ * queued futures and stops writer, so later modifiers are rejected instead of waiting for writer which is gone.
+ */
+class IngestWriter<T extends Item> {
+
+    private static final Logger LOGGER = Logger.getAnonymousLogger();
+
+    private static final long POLL_MILLIS = 10;
+
+    private final MutableFastSelect<T> target;
+    private final IngestQueue settings;
+    private final BlockingQueue<Task<T>> queue;
+    private final Thread writer;
+    private volatile boolean closed;
+    /**
+     * error which stopped writer thread or null
+     */
+    private volatile Throwable failure;
+
+    IngestWriter(final MutableFastSelect<T> target, final IngestQueue settings) {
+        this.target = target;
+        this.settings = settings;
+        this.queue = new ArrayBlockingQueue<>(settings.capacity);
+        this.writer = new DaemonThreadFactory("mutable-fast-select-ingest").newThread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        });
+        writer.start();
+    }
+
+    Future<ModifyResult> submit(final Modifier<T> modifier) {
+        if (closed) throw new RejectedExecutionException("Closed");
+        if (failure != null) throw new RejectedExecutionException("Writer failed", failure);
+
+        final Task<T> task = new Task<>(modifier);
+        switch (settings.backpressure) {
+            case BLOCK:
+                try {
+                    queue.put(task);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+                break;
+
+            case REJECT:
+                if (!queue.offer(task)) throw new RejectedExecutionException("Queue is full, " + settings);
+                break;
+
+            case DROP_OLDEST:
+                while (!queue.offer(task)) {
+                    final Task<T> oldest = queue.poll();
+                    if (oldest != null) oldest.complete(null, new RejectedExecutionException("Dropped by newer modifier"));
+                }
+                break;
+        }
+
+        // writer could finish between check and put
+        if (closed && queue.remove(task)) throw new RejectedExecutionException("Closed");
+        if (failure != null && queue.remove(task)) throw new RejectedExecutionException("Writer failed", failure);
+        return task;
+    }
+
+    /**
+     * Apply queued modifiers and stop writer thread
+     */
+    void close() {
+        closed = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        final List<Task<T>> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        for (final Task<T> task : rest) task.complete(null, new RejectedExecutionException("Closed"));
+    }
+
+    private void writeLoop() {
+        final List<Task<T>> batch = new ArrayList<>(settings.capacity);
+        final List<Modifier<T>> modifiers = new ArrayList<>(settings.capacity);
+        while (true) {
+            final Task<T> first;
+            try {
+                first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (first == null) {
+                if (closed) return;
+                continue;
+            }
+
+            batch.add(first);
+            queue.drainTo(batch, settings.capacity - 1);
+            for (final Task<T> task : batch) modifiers.add(task.modifier);
+            try {
+                final List<ModifyResult> results = target.modifyAll(modifiers);
+                for (int i = 0; i < batch.size(); i++) {
+                    final ModifyResult result = results.get(i);
+                    batch.get(i).complete(result, result.error);
+                }
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Can't apply " + batch.size() + " modifiers", e);
+                for (final Task<T> task : batch) task.complete(null, e);
+            } catch (Throwable e) {
+                LOGGER.log(Level.SEVERE, "Can't apply " + batch.size() + " modifiers, stop writer", e);
+                failure = e;
+                for (final Task<T> task : batch) task.complete(null, e);
+                final List<Task<T>> rest = new ArrayList<>();
+                queue.drainTo(rest);
+                for (final Task<T> task : rest) task.complete(null, new RejectedExecutionException("Writer failed", e));
+                return;
+            }
+            batch.clear();
+            modifiers.clear();
+        }
+    }
+
+    /**
+     * Queued modifier waiting to be applied
+     */
+    private static class Task<T extends Item> implements Future<ModifyResult> {
+
+        private final Modifier<T> modifier;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile ModifyResult result;
+        private volatile Throwable error;
+
+        Task(final Modifier<T> modifier) {
+            this.modifier = modifier;
+        }
+
+        void complete(final ModifyResult result, final Throwable error) {
+            this.result = result;
+            this.error = error;
+            done.countDown();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        @Override
+        public ModifyResult get() throws InterruptedException, ExecutionException {
+            done.await();
+            return result();
+        }
+
+        @Override
+        public ModifyResult get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit)) throw new TimeoutException();
+            return result();
+        }
+
+        private ModifyResult result() throws ExecutionException {
+            if (error != null) throw new ExecutionException(error);
+            return result;
+        }
+
+    }
+
+}
@@ -0,0 +1,157 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Two replicas of {@link Table} for reads without locks (left-right). Readers use active replica,
+ * writer applies change to standby one and switches readers to it. Same change is applied to other
+ * replica on next write, so writer waits only for readers which started before previous switch.
+ * <p>
+ * Readers never wait, but writer does: while one long reader holds a replica, first write goes to other
+ * one and next write waits until the long reader exits, as both replicas are in use then. It can't be
+ * avoided with two replicas, as change can't be applied to replica which is read, and next write should
+ * see previous one. Writer waits under write lock of {@link MutableFastSelect}, so every writer, compaction
+ * and rotation of {@link CommitLog} is stalled by long reader as well.
+ * <p>
+ * Writers should be serialized by caller.
+ */
+class LeftRight<T extends Item> {
+
+    private static final int SPINS = 100;
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final AtomicInteger[] readers = new AtomicInteger[]{new AtomicInteger(), new AtomicInteger()};
+    private final AtomicReferenceArray<Table<T>> tables = new AtomicReferenceArray<>(2);
+    private volatile int active;
+    private volatile boolean closed;
+
+    /**
+     * changes applied to active replica but not to standby, only for writer
+     */
+    private final List<DeleteAndAdd<T>> pending = new ArrayList<>();
+
+    LeftRight(final Table<T> left, final Table<T> right) {
+        tables.set(0, left);
+        tables.set(1, right);
+    }
+
+    /**
+     * @return - side of replica to read, should be released by {@link #exit(int)}
+     * @throws IllegalStateException - if replicas are closed
+     */
+    int enter() {
+        while (true) {
+            final int side = active;
+            readers[side].incrementAndGet();
+            if (closed) {
+                readers[side].decrementAndGet();
+                throw new IllegalStateException("Closed");
+            }
+            if (side == active) return side;
+            readers[side].decrementAndGet();
+        }
+    }
+
+    Table<T> table(final int side) {
+        return tables.get(side);
+    }
+
+    void exit(final int side) {
+        readers[side].decrementAndGet();
+    }
+
+    /**
+     * @return - replica which is visible for readers, writer can only read it
+     */
+    Table<T> active() {
+        return tables.get(active);
+    }
+
+    /**
+     * Wait for readers of standby replica and apply changes from previous write to it
+     *
+     * @return - standby replica to modify
+     */
+    Table<T> beginWrite() {
+        final int standby = 1 - active;
+        waitForReaders(standby);
+        final Table<T> table = tables.get(standby);
+        for (final DeleteAndAdd<T> change : pending) table.apply(change);
+        pending.clear();
+        return table;
+    }
+
+    /**
+     * Switch readers to replica returned by {@link #beginWrite()}
+     *
+     * @param change - change applied to it, will be applied to other replica on next write
+     */
+    void endWrite(final DeleteAndAdd<T> change) {
+        pending.add(change);
+        active = 1 - active;
+    }
+
+    /**
+     * @param changes - changes applied to replica in order
+     * @see #endWrite(DeleteAndAdd)
+     */
+    void endWrite(final List<DeleteAndAdd<T>> changes) {
+        pending.addAll(changes);
+        active = 1 - active;
+    }
+
+    /**
+     * Replace both replicas, current readers finish on replicas they have
+     */
+    void replace(final Table<T> left, final Table<T> right) {
+        final int standby = 1 - active;
+        tables.set(standby, left);
+        pending.clear();
+        active = standby;
+        tables.set(1 - standby, right);
+    }
+
+    /**
+     * Refuse new readers and wait for current ones, so replicas could be released
+     *
+     * @return - both replicas
+     */
+    List<Table<T>> close() {
+        closed = true;
+        waitForReaders(0);
+        waitForReaders(1);
+        final List<Table<T>> replicas = new ArrayList<>();
+        replicas.add(tables.get(0));
+        replicas.add(tables.get(1));
+        return replicas;
+    }
+
+    private void waitForReaders(final int side) {
+        int spins = 0;
+        while (readers[side].get() > 0) {
+            if (spins++ < SPINS) Thread.yield();
+            else LockSupport.parkNanos(PARK_NANOS);
+        }
+    }
+
+}
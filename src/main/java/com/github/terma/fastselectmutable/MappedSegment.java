@@ -0,0 +1,94 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Segment file is preallocated to segment size and mapped, so append is memory copy and force is
+ * {@link MappedByteBuffer#force()}. Not written tail is zeros, {@link SegmentReader} stops on it.
+ * On close file is truncated to written size.
+ * <p>
+ * Mapping is released by GC only, so file could not be removed on some platforms until then.
+ */
+class MappedSegment implements ActiveSegment {
+
+    private final RandomAccessFile file;
+    private final FileChannel fileChannel;
+    private MappedByteBuffer buffer;
+
+    /**
+     * @param size     - size of valid records already in file
+     * @param capacity - size of file to preallocate
+     */
+    MappedSegment(final File file, final long size, final long capacity) {
+        if (capacity > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Mapped commit log segment can't be bigger than 2 GB, but: " + capacity);
+        try {
+            this.file = new RandomAccessFile(file, "rw");
+            this.fileChannel = this.file.getChannel();
+            map((int) Math.max(size, capacity));
+            buffer.position((int) size);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void write(final ByteBuffer[] buffers, final long bytes) throws IOException {
+        if (bytes > buffer.remaining()) {
+            final long needed = buffer.position() + bytes;
+            if (needed > Integer.MAX_VALUE)
+                throw new IOException("Mapped commit log segment can't be bigger than 2 GB, but: " + needed);
+            final int position = buffer.position();
+            map((int) needed);
+            buffer.position(position);
+        }
+        for (final ByteBuffer source : buffers) buffer.put(source);
+    }
+
+    @Override
+    public void force() {
+        buffer.force();
+    }
+
+    /**
+     * Fill bytes after size with zeros, so reader stops there
+     */
+    @Override
+    public void truncate(final long size) {
+        for (int i = (int) size; i < buffer.position(); i++) buffer.put(i, (byte) 0);
+        buffer.position((int) size);
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer.force();
+        fileChannel.truncate(buffer.position());
+        buffer = null;
+        file.close();
+    }
+
+    private void map(final int size) throws IOException {
+        buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+}
@@ -18,11 +18,9 @@ package com.github.terma.fastselectmutable;
 import com.github.terma.fastselect.FastSelect;
 
 import java.io.Serializable;
-import java.util.List;
-import java.util.Map;
 
 public interface Modifier<T extends Item> extends Serializable {
 
-    void execute(DeleteAndAdd<T> acc, FastSelect data, Map<Object, List<Integer>> positions);
+    void execute(DeleteAndAdd<T> acc, FastSelect data, Positions positions);
 
 }
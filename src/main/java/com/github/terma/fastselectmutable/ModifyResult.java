@@ -0,0 +1,57 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+/**
+ * Result of one {@link Modifier} from {@link MutableFastSelect#modifyAll(java.util.Collection)}
+ */
+@SuppressWarnings("WeakerAccess")
+public class ModifyResult {
+
+    /**
+     * count of rows deleted by modifier
+     */
+    public final int deleted;
+    /**
+     * count of rows added by modifier
+     */
+    public final int added;
+    /**
+     * count of values set in place by modifier
+     */
+    public final int updated;
+    /**
+     * error thrown by modifier or null if its changes were applied
+     */
+    public final RuntimeException error;
+
+    ModifyResult(final int deleted, final int added, final int updated, final RuntimeException error) {
+        this.deleted = deleted;
+        this.added = added;
+        this.updated = updated;
+        this.error = error;
+    }
+
+    public boolean applied() {
+        return error == null;
+    }
+
+    @Override
+    public String toString() {
+        return "ModifyResult {deleted: " + deleted + ", added: " + added + ", updated: " + updated + ", error: " + error + "}";
+    }
+
+}
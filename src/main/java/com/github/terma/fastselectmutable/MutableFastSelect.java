@@ -16,48 +16,95 @@ limitations under the License.
 package com.github.terma.fastselectmutable;
 
 import com.github.terma.fastselect.FastSelect;
-import com.github.terma.fastselect.FastSelectBuilder;
-import com.github.terma.fastselect.data.ByteData;
-import com.github.terma.fastselect.data.StringData;
 
 import javax.annotation.concurrent.ThreadSafe;
-import java.io.*;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * update to data
  * write changes to commit log
- * update data in ${@link com.github.terma.fastselect.FastSelect} and positions to keep data queryable
+ * update data in ${@link com.github.terma.fastselect.FastSelect} and {@link Positions} to keep data queryable
  */
 @SuppressWarnings("WeakerAccess")
 @ThreadSafe
-public class MutableFastSelect<T extends Item> {
+public class MutableFastSelect<T extends Item> implements Closeable {
 
     private static final Logger LOGGER = Logger.getAnonymousLogger();
 
-    private static final long COMMIT_LOG_THRESHOLD = 10 * 1024 * 1024;
-    private static final int LOAD_THREADS = 5;
+    static final long COMMIT_LOG_THRESHOLD = 10 * 1024 * 1024;
+    private static final int LOAD_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int REPLAY_READ_AHEAD = 16;
+    private static final int STARTUP_READ_AHEAD = 256;
+    private static final int MIN_SCAN_CHUNK = 64 * 1024;
 
-    private static final String DATA_FILENAME = "data.bin";
+    /**
+     * shared by all instances for {@link #parallelSelect(RangeSelector, Reducer)}, so shards don't start
+     * pool per core each, shut down when last instance is closed, guarded by class
+     */
+    private static ForkJoinPool sharedScanPool;
+    private static int scanPoolUsers;
 
     private final long commitLogThreshold;
     private final boolean useLog;
 
-    private final Map<Object, List<Integer>> positions;
+    private final Class<T> clazz;
+    private final Compaction compaction;
+    private final Map<String, IndexType> indexes;
+    private final IngestQueue ingestQueue;
+    private final boolean offHeap;
+    /**
+     * values set by {@link Setter} are written to column commit log, otherwise rows are replaced
+     */
+    private final boolean inPlace;
+    /**
+     * started by first {@link #modifyAsync(Modifier)}, guarded by this
+     */
+    private IngestWriter<T> ingestWriter;
+    private boolean closed;
     private final CommitLog<T> commitLog;
-    private final FastSelect<T> data;
-    private final File dataFile;
+    private final Snapshots snapshots;
+    private final Compactions compactions;
+    /**
+     * guarded by read write lock, replaced by compaction, null for non blocking reads
+     */
+    private Table<T> table;
+    /**
+     * replicas for non blocking reads or null, writers are guarded by write lock
+     */
+    private LeftRight<T> replicas;
+    /**
+     * direct memory of tables is released by {@link #close()}, guarded by read write lock
+     */
+    private boolean released;
+    /**
+     * completed when data is loaded and table or replicas are set, see {@link MutableFastSelectBuilder#asyncOpen(boolean)}
+     */
+    private final FutureTask<Void> loading;
 
-    private final ByteData deletedData;
-    private final StringData idData;
+    private final ExecutorService snapshotExecutor = Executors.newSingleThreadExecutor(
+            new DaemonThreadFactory("mutable-fast-select-snapshot"));
+    private final ForkJoinPool scanPool = acquireScanPool();
+    private final AtomicBoolean snapshotScheduled = new AtomicBoolean();
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    /**
+     * last {@link CommitLog} segment requested to be saved with data, guarded by write lock
+     */
+    private long snapshotRequested;
 
     private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
     private final Lock r = readWriteLock.readLock();
@@ -71,108 +118,711 @@ public class MutableFastSelect<T extends Item> {
      * @param clazz              - data class
      * @param dir                - directory where commit log and data file will be stored
      * @param useLog             - enable logging
-     * @param commitLogThreshold - max size of {@link CommitLog} in bytes before it it
-     *                           will be flushed to {@link FastSelect#save(FileChannel)}
+     * @param commitLogThreshold - max size of {@link CommitLog} in bytes not saved with data before it
+     *                           will be sealed and saved by {@link FastSelect#save(FileChannel)} in background
      */
     public MutableFastSelect(Class<T> clazz, final File dir, final boolean useLog, final long commitLogThreshold) {
-        this.commitLogThreshold = commitLogThreshold;
-        this.useLog = useLog;
-        this.dataFile = new File(dir, DATA_FILENAME);
+        this(clazz, dir, useLog, commitLogThreshold, GroupCommit.DISABLED);
+    }
+
+    /**
+     * @param clazz              - data class
+     * @param dir                - directory where commit log and data file will be stored
+     * @param useLog             - enable logging
+     * @param commitLogThreshold - max size of {@link CommitLog} in bytes not saved with data before it
+     *                           will be sealed and saved by {@link FastSelect#save(FileChannel)} in background
+     * @param groupCommit        - let concurrent {@link #modify(Modifier)} share one write and force of {@link CommitLog}
+     */
+    public MutableFastSelect(Class<T> clazz, final File dir, final boolean useLog, final long commitLogThreshold,
+                             final GroupCommit groupCommit) {
+        this(clazz, dir, useLog, commitLogThreshold, Durability.PER_WRITE, groupCommit);
+    }
+
+    public MutableFastSelect(Class<T> clazz, final File dir, final boolean useLog, final long commitLogThreshold,
+                             final Durability durability) {
+        this(clazz, dir, useLog, commitLogThreshold, durability, GroupCommit.DISABLED);
+    }
+
+    /**
+     * @param clazz              - data class
+     * @param dir                - directory where commit log and data file will be stored
+     * @param useLog             - enable logging
+     * @param commitLogThreshold - max size of {@link CommitLog} in bytes not saved with data before it
+     *                           will be sealed and saved by {@link FastSelect#save(FileChannel)} in background
+     * @param durability         - when {@link CommitLog} forces writes to disk
+     * @param groupCommit        - let concurrent {@link #modify(Modifier)} share one write and force of {@link CommitLog}
+     */
+    public MutableFastSelect(Class<T> clazz, final File dir, final boolean useLog, final long commitLogThreshold,
+                             final Durability durability, final GroupCommit groupCommit) {
+        this(clazz, dir, useLog, commitLogThreshold, durability, groupCommit, Compaction.DISABLED);
+    }
+
+    /**
+     * @param clazz              - data class
+     * @param dir                - directory where commit log and data file will be stored
+     * @param useLog             - enable logging
+     * @param commitLogThreshold - max size of {@link CommitLog} in bytes not saved with data before it
+     *                           will be sealed and saved by {@link FastSelect#save(FileChannel)} in background
+     * @param durability         - when {@link CommitLog} forces writes to disk
+     * @param groupCommit        - let concurrent {@link #modify(Modifier)} share one write and force of {@link CommitLog}
+     * @param compaction         - when to remove deleted rows in background, see {@link #compact()}
+     */
+    public MutableFastSelect(Class<T> clazz, final File dir, final boolean useLog, final long commitLogThreshold,
+                             final Durability durability, final GroupCommit groupCommit, final Compaction compaction) {
+        this(new MutableFastSelectBuilder<>(clazz, dir).useLog(useLog).commitLogThreshold(commitLogThreshold)
+                .durability(durability).groupCommit(groupCommit).compaction(compaction));
+    }
+
+    MutableFastSelect(final MutableFastSelectBuilder<T> builder) {
+        this.clazz = builder.clazz;
+        this.commitLogThreshold = builder.commitLogThreshold;
+        this.useLog = builder.useLog;
+        this.compaction = builder.compaction;
+        this.indexes = new LinkedHashMap<>(builder.indexes);
+        this.ingestQueue = builder.ingestQueue;
+        this.offHeap = builder.offHeap;
+        this.inPlace = builder.columnCommitLog;
+
+        // scan pool is already acquired, release it and threads of commit log if instance can't be opened
+        CommitLog<T> openedCommitLog = null;
+        boolean opened = false;
+        try {
+            this.snapshots = new Snapshots(builder.dir, useLog, builder.deltaSnapshots);
+            this.compactions = new Compactions(builder.dir);
+
+            openedCommitLog = new CommitLog<>(builder.dir, useLog, builder.durability, builder.groupCommit,
+                    CommitLog.SEGMENT_SIZE, builder.mappedCommitLog, builder.columnCommitLog ? builder.clazz : null);
+            commitLog = openedCommitLog;
 
+            final boolean nonBlockingReads = builder.nonBlockingReads;
+            loading = new FutureTask<>(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    load(nonBlockingReads);
+                    return null;
+                }
+            });
+            if (builder.asyncOpen) {
+                // before any snapshot or compaction
+                snapshotExecutor.submit(loading);
+            } else {
+                loading.run();
+                awaitLoad();
+            }
+            opened = true;
+        } finally {
+            if (!opened) abandon(openedCommitLog);
+        }
+    }
+
+    /**
+     * Release resources of instance which failed to open
+     *
+     * @param commitLog - opened commit log or null
+     */
+    private void abandon(final CommitLog<T> commitLog) {
+        releaseScanPool();
+        snapshotExecutor.shutdownNow();
+        try {
+            snapshotExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (commitLog == null) return;
+        try {
+            commitLog.close();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Can't close commit log of instance which failed to open", e);
+        }
+    }
+
+    /**
+     * Load data file, indexes and deltas, replay commit log after them, then schedule snapshot or compaction if needed
+     */
+    private void load(final boolean nonBlockingReads) {
         // load data to fast-select
-        positions = new HashMap<>();
-        data = new FastSelectBuilder<>(clazz).create();
-
-        final FastSelect.Column deleteColumn = data.getColumnsByNames().get("deleted");
-        if (deleteColumn == null)
-            throw new IllegalArgumentException("Data object doesn't have 'deleted' column, only: " + data.getColumns());
-        deletedData = (ByteData) deleteColumn.data;
-
-        final FastSelect.Column idColumn = data.getColumnsByNames().get("id");
-        if (idColumn == null)
-            throw new IllegalArgumentException("Data object doesn't have 'id' column, only: " + data.getColumns());
-        idData = (StringData) idColumn.data;
-
-        try (final FileChannel fileChannel = new FileInputStream(dataFile).getChannel()) {
-            data.load(fileChannel, LOAD_THREADS);
-        } catch (FileNotFoundException e) {
-            // ok, just no data to restore
-        } catch (IOException e) {
+        Table<T> loaded = new Table<>(clazz, indexes, offHeap);
+
+        // start to decode commit log segments which are not in data file yet while data is loading,
+        // up to first compaction if any
+        final long startupStart = System.currentTimeMillis();
+        final List<Long> points = compactions.between(snapshots.latest(), Long.MAX_VALUE);
+        final long firstUpTo = points.isEmpty() ? Long.MAX_VALUE : points.get(0);
+        final long loadEnd;
+        final boolean indexLoaded;
+        final long positionsEnd;
+        try (final ReadAheadIterator<DeleteAndAdd<T>> replay =
+                     commitLog.load(snapshots.latest(), firstUpTo, STARTUP_READ_AHEAD)) {
+            snapshots.load(loaded.data, LOAD_THREADS);
+            loadEnd = System.currentTimeMillis();
+
+            indexLoaded = loadIndex(loaded);
+            snapshots.applyDeltas(loaded, clazz);
+            positionsEnd = System.currentTimeMillis();
+
+            while (replay.hasNext()) loaded.apply(replay.next());
+        }
+        if (!points.isEmpty()) {
+            loaded = compact(loaded, compactions.removed(firstUpTo));
+            loaded = replay(loaded, firstUpTo, Long.MAX_VALUE, STARTUP_READ_AHEAD);
+        }
+        if (nonBlockingReads) {
+            replicas = new LeftRight<>(loaded, loaded.compact(new int[0], LOAD_THREADS));
+        } else {
+            replicas = null;
+            table = loaded;
+        }
+
+        if (useLog) {
+            LOGGER.info("startup in " + (System.currentTimeMillis() - startupStart) + " msec"
+                    + ", load " + loaded.data.size() + " rows in " + (loadEnd - startupStart) + " msec"
+                    + (indexLoaded ? ", load" : ", build") + " positions in " + (positionsEnd - loadEnd) + " msec"
+                    + ", replay commit log in " + (System.currentTimeMillis() - positionsEnd) + " msec");
+        }
+
+        snapshotRequested = snapshots.latest();
+        if (commitLog.size(snapshotRequested) > commitLogThreshold) commitLog.rotate();
+        if (commitLog.lastSealed() > snapshotRequested) {
+            snapshotRequested = commitLog.lastSealed();
+            scheduleSnapshot();
+        }
+        if (compaction.needed(loaded.data.size(), loaded.dead())) scheduleCompaction();
+    }
+
+    /**
+     * Wait until data is loaded
+     *
+     * @throws RuntimeException - if data can't be loaded
+     */
+    private void awaitLoad() {
+        try {
+            loading.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new RuntimeException("Can't load data", cause);
         }
+    }
 
-        // build positions map
-        for (int i = 0; i < idData.size(); i++) {
-            String id = (String) idData.get(i);
-            List<Integer> pos = positions.get(id);
-            if (pos == null) {
-                pos = new ArrayList<>();
-                positions.put(id, pos);
-            }
-            pos.add(i);
+    /**
+     * Load tombstones of data file, then use indexes saved with it or build them from data
+     * if there is no one or it doesn't match
+     *
+     * @return - true if id index was loaded
+     */
+    private boolean loadIndex(final Table<T> table) {
+        table.use(snapshots.loadTombstones(table));
+        for (final ColumnPositions columnIndex : table.indexes.values()) {
+            final IdIndex positions = snapshots.loadIndex(table, columnIndex);
+            if (positions == null) table.buildIndex(columnIndex, LOAD_THREADS);
+            else columnIndex.use(positions);
         }
 
-        // update data with commit log if any
-        commitLog = new CommitLog<>(dir, useLog);
-        for (final DeleteAndAdd<T> deleteAndAdd : commitLog.load()) modify(deleteAndAdd);
-        commitLog.clear();
+        final IdIndex index = snapshots.loadIndex(table);
+        if (index == null) {
+            table.buildIndex(LOAD_THREADS);
+            return false;
+        }
+        table.use(index);
+        return true;
     }
 
-    private void modify(DeleteAndAdd<T> deleteAndAdd) {
-        for (final Integer pos : deleteAndAdd.delete) {
-            deletedData.data[pos] = 1;
-            String id = (String) idData.get(pos);
-            positions.remove(id);
-        }
-
-        int i = data.size();
-        for (final T obj : deleteAndAdd.add) {
-            final Object id = obj.getId();
-            List<Integer> pos = positions.get(id);
-            if (pos == null) {
-                pos = new ArrayList<>();
-                positions.put(id, pos);
-            }
-            pos.add(i);
-            i++;
+    /**
+     * Apply {@link CommitLog} segments in range (after, upTo] to table and compact it at same points as it was done
+     *
+     * @return - table with changes, new one if it was compacted
+     */
+    private Table<T> replay(Table<T> table, final long after, final long upTo, final int readAhead) {
+        long from = after;
+        for (final long point : compactions.between(after, upTo)) {
+            apply(table, from, point, readAhead);
+            table = compact(table, compactions.removed(point));
+            from = point;
         }
-        data.addAll(deleteAndAdd.add);
+        apply(table, from, upTo, readAhead);
+        return table;
+    }
+
+    /**
+     * @return - compacted copy of table which is not visible for anybody, its direct memory is released
+     */
+    private Table<T> compact(final Table<T> table, final int[] removed) {
+        final Table<T> compacted = table.compact(removed, LOAD_THREADS);
+        table.free();
+        return compacted;
+    }
+
+    private void apply(final Table<T> table, final long after, final long upTo, final int readAhead) {
+        try (final ReadAheadIterator<DeleteAndAdd<T>> records = commitLog.load(after, upTo, readAhead)) {
+            while (records.hasNext()) table.apply(records.next());
+        }
+    }
+
+    /**
+     * @return - copy of data up to {@link CommitLog} segment built from data file without lock
+     */
+    private Table<T> copy(final long upTo) {
+        final Table<T> copy = new Table<>(clazz, indexes, offHeap);
+        snapshots.load(copy.data, LOAD_THREADS);
+        loadIndex(copy);
+        snapshots.applyDeltas(copy, clazz);
+        return replay(copy, snapshots.latest(), upTo, REPLAY_READ_AHEAD);
     }
 
     public void select(final Selector<T> selector) {
+        awaitLoad();
         final long start = System.currentTimeMillis();
-        r.lock();
-        try {
-            selector.execute(data, positions);
-        } finally {
-            r.unlock();
+        if (replicas == null) {
+            r.lock();
+            try {
+                checkOpen();
+                selector.execute(table.data, table);
+            } finally {
+                r.unlock();
+            }
+        } else {
+            final int side = replicas.enter();
+            try {
+                final Table<T> replica = replicas.table(side);
+                selector.execute(replica.data, replica);
+            } finally {
+                replicas.exit(side);
+            }
         }
         if (useLog) LOGGER.info("select in " + (System.currentTimeMillis() - start) + " msec");
     }
 
+    /**
+     * Split rows to chunks and execute selector on them in parallel on fork join pool, all chunks
+     * see same version of data as modifications wait like for {@link #select(Selector)}
+     *
+     * @return - results of chunks combined by reducer in order of rows
+     */
+    public <R> R parallelSelect(final RangeSelector<T, R> selector, final Reducer<R> reducer) {
+        awaitLoad();
+        final long start = System.currentTimeMillis();
+        final R result;
+        if (replicas == null) {
+            r.lock();
+            try {
+                checkOpen();
+                result = scan(table, selector, reducer);
+            } finally {
+                r.unlock();
+            }
+        } else {
+            final int side = replicas.enter();
+            try {
+                result = scan(replicas.table(side), selector, reducer);
+            } finally {
+                replicas.exit(side);
+            }
+        }
+        if (useLog) LOGGER.info("parallel select in " + (System.currentTimeMillis() - start) + " msec");
+        return result;
+    }
+
+    private <R> R scan(final Table<T> table, final RangeSelector<T, R> selector, final Reducer<R> reducer) {
+        final int rows = table.data.size();
+        final int chunk = Math.max(MIN_SCAN_CHUNK, rows / (scanPool.getParallelism() * 4));
+        return scanPool.invoke(new Scan<>(table, selector, reducer, 0, rows, chunk));
+    }
+
+    /**
+     * @throws IllegalStateException - if tables are released by {@link #close()}
+     */
+    private void checkOpen() {
+        if (released) throw new IllegalStateException("Closed");
+    }
+
+    /**
+     * @return - table to modify under write lock
+     */
+    private Table<T> beginWrite() {
+        checkOpen();
+        return replicas == null ? table : replicas.beginWrite();
+    }
+
+    /**
+     * Apply modifier and return when change is durable. With {@link GroupCommit} change is visible
+     * for {@link #select(Selector)} a bit before, as it waits for durability without lock.
+     * <p>
+     * Without group commit change is written before it's applied, so failed write is thrown and change
+     * is not visible. With group commit failed write is thrown after change is visible, then
+     * {@link CommitLog} refuses next modifications until store is reopened.
+     */
     public void modify(final Modifier<T> modifier) {
+        awaitLoad();
         final long start = System.currentTimeMillis();
+        final Future<Void> durable;
         w.lock();
         try {
+            final Table<T> current = beginWrite();
             DeleteAndAdd<T> deleteAndAdd = new DeleteAndAdd<>(new ArrayList<Integer>(), new ArrayList<T>());
-            modifier.execute(deleteAndAdd, data, positions);
-            commitLog.write(deleteAndAdd);
-            modify(deleteAndAdd);
-
-            if (commitLog.size() > commitLogThreshold) flushCommitLog();
+            modifier.execute(deleteAndAdd, current.data, current);
+            current.expand(deleteAndAdd, inPlace);
+            durable = commitLog.append(deleteAndAdd);
+            if (durable.isDone()) CommitLog.await(durable);
+            current.apply(deleteAndAdd);
+            if (replicas != null) replicas.endWrite(deleteAndAdd);
+            afterWrite(current);
         } finally {
             w.unlock();
         }
+        CommitLog.await(durable);
         if (useLog) LOGGER.info("modify in " + (System.currentTimeMillis() - start) + " msec");
     }
 
-    private void flushCommitLog() {
-        try (final FileChannel fileChannel = new RandomAccessFile(dataFile, "rw").getChannel()) {
-            data.save(fileChannel);
-        } catch (IOException e) {
+    /**
+     * Apply modifiers one by one under one lock, each sees changes of previous ones. Changes are written
+     * to {@link CommitLog} as one write after all modifiers, so lock and force are paid once per batch.
+     * Modifier which throws exception or change of which is invalid or can't be serialized is skipped with
+     * its changes, others are applied. Change is checked before anything of it is applied.
+     * <p>
+     * Changes are serialized before they are applied but written after, so failed write is thrown when
+     * they are visible, then {@link CommitLog} refuses next modifications until store is reopened.
+     *
+     * @return - result per modifier in same order, when all changes are durable
+     */
+    public List<ModifyResult> modifyAll(final Collection<? extends Modifier<T>> modifiers) {
+        awaitLoad();
+        final long start = System.currentTimeMillis();
+        final List<ModifyResult> results = new ArrayList<>(modifiers.size());
+        final List<DeleteAndAdd<T>> changes = new ArrayList<>(modifiers.size());
+        final Future<Void> durable;
+        w.lock();
+        try {
+            final CommitLog<T>.Batch batch = commitLog.batch();
+            final Table<T> current = beginWrite();
+            for (final Modifier<T> modifier : modifiers) {
+                final DeleteAndAdd<T> deleteAndAdd = new DeleteAndAdd<>(new ArrayList<Integer>(), new ArrayList<T>());
+                try {
+                    modifier.execute(deleteAndAdd, current.data, current);
+                    current.expand(deleteAndAdd, inPlace);
+                    batch.add(deleteAndAdd);
+                } catch (RuntimeException e) {
+                    results.add(new ModifyResult(0, 0, 0, e));
+                    continue;
+                }
+                current.apply(deleteAndAdd);
+                changes.add(deleteAndAdd);
+                results.add(new ModifyResult(deleteAndAdd.delete.size(), deleteAndAdd.add.size(),
+                        deleteAndAdd.set.size(), null));
+            }
+            try {
+                durable = commitLog.append(batch);
+            } finally {
+                if (replicas != null) replicas.endWrite(changes);
+            }
+            afterWrite(current);
+        } finally {
+            w.unlock();
+        }
+        CommitLog.await(durable);
+        if (useLog) LOGGER.info("modify " + modifiers.size() + " in " + (System.currentTimeMillis() - start) + " msec");
+        return results;
+    }
+
+    /**
+     * Queue modifier for writer thread which applies queued ones in batches by {@link #modifyAll(Collection)},
+     * when queue is full behaves according to {@link IngestQueue.Backpressure}
+     *
+     * @return - completed when change is durable and visible, fails with error of modifier
+     * @throws RejectedExecutionException - if queue is full with {@link IngestQueue.Backpressure#REJECT}, closed
+     *                                    or writer thread is stopped by error
+     */
+    public Future<ModifyResult> modifyAsync(final Modifier<T> modifier) {
+        final IngestWriter<T> writer;
+        synchronized (this) {
+            if (closed) throw new RejectedExecutionException("Closed");
+            if (ingestWriter == null) ingestWriter = new IngestWriter<>(this, ingestQueue);
+            writer = ingestWriter;
+        }
+        return writer.submit(modifier);
+    }
+
+    /**
+     * Rotate {@link CommitLog} and schedule snapshot or compaction if needed, under write lock
+     */
+    private void afterWrite(final Table<T> current) {
+        if (commitLog.size(snapshotRequested) > commitLogThreshold) {
+            snapshotRequested = commitLog.rotate();
+            scheduleSnapshot();
+        }
+        if (compaction.needed(current.data.size(), current.dead())) scheduleCompaction();
+    }
+
+    private void scheduleSnapshot() {
+        if (snapshotScheduled.compareAndSet(false, true)) {
+            snapshotExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    snapshotScheduled.set(false);
+                    try {
+                        snapshot();
+                    } catch (IOException | RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Can't save data, will retry with next commit log segment", e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Save delta of sealed {@link CommitLog} segments, so cost depends on amount of changes. Time to time
+     * or after compaction build data file and index from previous ones and sealed segments on separate {@link Table},
+     * so readers and writers are not blocked. Sealed segments are removed when they are not needed
+     * to recover from previous generation of data file.
+     */
+    private void snapshot() throws IOException {
+        final long after = snapshots.latest();
+        final long upTo = commitLog.lastSealed();
+        if (upTo <= after) return;
+
+        final long start = System.currentTimeMillis();
+        final long deletable;
+        if (snapshots.baseDue() || !compactions.between(after, upTo).isEmpty()) {
+            final Table<T> copy = copy(upTo);
+            try {
+                deletable = snapshots.publish(copy, upTo);
+            } finally {
+                copy.free();
+            }
+        } else {
+            try (final ReadAheadIterator<DeleteAndAdd<T>> records = commitLog.load(after, upTo, REPLAY_READ_AHEAD)) {
+                deletable = snapshots.publishDelta(records, clazz, upTo);
+            }
+        }
+        commitLog.delete(deletable);
+        compactions.delete(deletable);
+        if (useLog) LOGGER.info("snapshot up to segment " + upTo + " in " + (System.currentTimeMillis() - start) + " msec");
+    }
+
+    /**
+     * Remove deleted rows on background thread and wait for it. Readers and writers are blocked only
+     * to apply changes done while compaction was running.
+     */
+    public void compact() {
+        try {
+            snapshotExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    compaction();
+                    return null;
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private void scheduleCompaction() {
+        if (compactionScheduled.compareAndSet(false, true)) {
+            snapshotExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compaction();
+                    } catch (IOException | RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Can't compact data, will retry later", e);
+                    } finally {
+                        compactionScheduled.set(false);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Build compacted copy from data file and sealed {@link CommitLog} segments without lock,
+     * catch up with changes done meanwhile and replace data under write lock only for the last of them.
+     * Removed positions are saved as compaction point after last segment with old positions,
+     * so replay compacts data at same point.
+     */
+    private void compaction() throws IOException {
+        final long start = System.currentTimeMillis();
+        final long sealed = rotate();
+        final Table<T> copy = copy(sealed);
+        final int[] removed = copy.deletedPositions();
+        if (removed.length == 0) return;
+
+        final int rows = copy.data.size();
+        final List<Table<T>> compacted = new ArrayList<>();
+        compacted.add(copy.compact(removed, LOAD_THREADS));
+        if (replicas != null) compacted.add(copy.compact(removed, LOAD_THREADS));
+        copy.free();
+        final long caughtUp = catchUp(compacted, removed, rows, sealed, rotate());
+        compactions.prepare(removed);
+
+        w.lock();
+        try {
+            final long last = commitLog.rotate();
+            catchUp(compacted, removed, rows, caughtUp, last);
+            compactions.commit(last);
+            if (replicas == null) {
+                // readers are done with old table as they hold read lock
+                table.free();
+                table = compacted.get(0);
+            } else {
+                // readers could still be on old replicas, their direct memory is released by GC
+                replicas.replace(compacted.get(0), compacted.get(1));
+            }
+            snapshotRequested = last;
+        } finally {
+            w.unlock();
+        }
+        if (useLog) LOGGER.info("compaction removed " + removed.length + " rows in "
+                + (System.currentTimeMillis() - start) + " msec");
+
+        // already on background thread, save compacted data so replay doesn't need to compact again
+        try {
+            snapshot();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Can't save data, will retry with next commit log segment", e);
+        }
+    }
+
+    private long rotate() {
+        w.lock();
+        try {
+            return commitLog.rotate();
+        } finally {
+            w.unlock();
+        }
+    }
+
+    /**
+     * Apply {@link CommitLog} segments in range (after, upTo] done before compaction to compacted tables
+     *
+     * @return - upTo
+     */
+    private long catchUp(final List<Table<T>> compacted, final int[] removed, final int rows,
+                         final long after, final long upTo) {
+        try (final ReadAheadIterator<DeleteAndAdd<T>> records = commitLog.load(after, upTo, REPLAY_READ_AHEAD)) {
+            while (records.hasNext()) catchUp(compacted, removed, rows, records.next());
+        }
+        return upTo;
+    }
+
+    private void catchUp(final List<Table<T>> compacted, final int[] removed, final int rows,
+                         final DeleteAndAdd<T> deleteAndAdd) {
+        final List<Integer> delete = new ArrayList<>(deleteAndAdd.delete.size());
+        for (final Integer pos : deleteAndAdd.delete) {
+            final int compactedPos = Table.compacted(removed, rows, pos);
+            if (compactedPos >= 0) delete.add(compactedPos);
+        }
+        final List<ColumnUpdate> set = new ArrayList<>(deleteAndAdd.set.size());
+        for (final ColumnUpdate update : deleteAndAdd.set) {
+            final int compactedPos = Table.compacted(removed, rows, update.position);
+            if (compactedPos >= 0) set.add(new ColumnUpdate(compactedPos, update.column, update.value));
+        }
+        for (final Table<T> table : compacted) table.apply(new DeleteAndAdd<>(delete, deleteAndAdd.add, set));
+    }
+
+    private static synchronized ForkJoinPool acquireScanPool() {
+        if (scanPoolUsers == 0) sharedScanPool = new ForkJoinPool(LOAD_THREADS);
+        scanPoolUsers++;
+        return sharedScanPool;
+    }
+
+    /**
+     * @return - count of instances which use shared scan pool
+     */
+    static synchronized int scanPoolUsers() {
+        return scanPoolUsers;
+    }
+
+    private static synchronized void releaseScanPool() {
+        scanPoolUsers--;
+        if (scanPoolUsers == 0) {
+            sharedScanPool.shutdown();
+            sharedScanPool = null;
+        }
+    }
+
+    /**
+     * Wait for background snapshot if any and release resources, including direct memory of off heap tables.
+     * Select or modification after that throws {@link IllegalStateException}.
+     */
+    @Override
+    public void close() {
+        final IngestWriter<T> writer;
+        final boolean first;
+        synchronized (this) {
+            first = !closed;
+            closed = true;
+            writer = ingestWriter;
+        }
+        if (writer != null) writer.close();
+
+        if (first) releaseScanPool();
+        snapshotExecutor.shutdown();
+        try {
+            snapshotExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        w.lock();
+        try {
+            commitLog.close();
+            if (!released) release();
+        } finally {
+            w.unlock();
+        }
+    }
+
+    /**
+     * Release direct memory of tables when readers are done with them, under write lock
+     */
+    private void release() {
+        released = true;
+        if (replicas != null) {
+            for (final Table<T> replica : replicas.close()) replica.free();
+        } else if (table != null) {
+            table.free();
+        }
+    }
+
+    /**
+     * Split range of rows by half until chunk size, execute selector on chunks and reduce results in order
+     */
+    private static class Scan<T extends Item, R> extends RecursiveTask<R> {
+
+        private final Table<T> table;
+        private final RangeSelector<T, R> selector;
+        private final Reducer<R> reducer;
+        private final int from;
+        private final int to;
+        private final int chunk;
+
+        Scan(final Table<T> table, final RangeSelector<T, R> selector, final Reducer<R> reducer,
+             final int from, final int to, final int chunk) {
+            this.table = table;
+            this.selector = selector;
+            this.reducer = reducer;
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected R compute() {
+            if (to - from <= chunk) return selector.execute(table.data, table, from, to);
+
+            final int middle = from + (to - from) / 2;
+            final Scan<T, R> left = new Scan<>(table, selector, reducer, from, middle, chunk);
+            final Scan<T, R> right = new Scan<>(table, selector, reducer, middle, to, chunk);
+            left.fork();
+            final R rightResult = right.compute();
+            return reducer.reduce(left.join(), rightResult);
         }
-        commitLog.clear();
     }
 
 }
@@ -0,0 +1,208 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+import com.github.terma.fastselect.FastSelect;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Settings of {@link MutableFastSelect}, defaults are same as for {@link MutableFastSelect#MutableFastSelect(Class, File, boolean)}
+ *
+ * @param <T>
+ * @see MutableFastSelect
+ */
+@SuppressWarnings("WeakerAccess")
+public class MutableFastSelectBuilder<T extends Item> {
+
+    final Class<T> clazz;
+    final File dir;
+    boolean useLog;
+    long commitLogThreshold = MutableFastSelect.COMMIT_LOG_THRESHOLD;
+    Durability durability = Durability.PER_WRITE;
+    GroupCommit groupCommit = GroupCommit.DISABLED;
+    Compaction compaction = Compaction.DISABLED;
+    boolean nonBlockingReads;
+    boolean mappedCommitLog;
+    boolean columnCommitLog = true;
+    int deltaSnapshots;
+    boolean asyncOpen;
+    boolean offHeap;
+    IngestQueue ingestQueue = IngestQueue.DEFAULT;
+    final Map<String, IndexType> indexes = new LinkedHashMap<>();
+
+    /**
+     * @param clazz - data class
+     * @param dir   - directory where commit log and data file will be stored
+     */
+    public MutableFastSelectBuilder(final Class<T> clazz, final File dir) {
+        this.clazz = clazz;
+        this.dir = dir;
+    }
+
+    public MutableFastSelectBuilder<T> useLog(final boolean useLog) {
+        this.useLog = useLog;
+        return this;
+    }
+
+    /**
+     * @param commitLogThreshold - max size of {@link CommitLog} in bytes not saved with data before it
+     *                           will be sealed and saved by {@link FastSelect#save(FileChannel)} in background
+     */
+    public MutableFastSelectBuilder<T> commitLogThreshold(final long commitLogThreshold) {
+        this.commitLogThreshold = commitLogThreshold;
+        return this;
+    }
+
+    /**
+     * @param durability - when {@link CommitLog} forces writes to disk
+     */
+    public MutableFastSelectBuilder<T> durability(final Durability durability) {
+        this.durability = durability;
+        return this;
+    }
+
+    /**
+     * @param groupCommit - let concurrent {@link MutableFastSelect#modify(Modifier)} share one write
+     *                    and force of {@link CommitLog}
+     */
+    public MutableFastSelectBuilder<T> groupCommit(final GroupCommit groupCommit) {
+        this.groupCommit = groupCommit;
+        return this;
+    }
+
+    /**
+     * @param compaction - when to remove deleted rows in background, see {@link MutableFastSelect#compact()}
+     */
+    public MutableFastSelectBuilder<T> compaction(final Compaction compaction) {
+        this.compaction = compaction;
+        return this;
+    }
+
+    /**
+     * Keep two replicas of data, so {@link MutableFastSelect#select(Selector)} never waits
+     * for {@link MutableFastSelect#modify(Modifier)} and modify waits only for selects started before previous
+     * modify. So one long select lets one modify to pass, but second one waits until the select is done
+     * while holding write lock, so other modifications, compaction and rotation of {@link CommitLog} wait too.
+     * Long selects still stall ingestion with this setting. Needs twice more memory.
+     */
+    public MutableFastSelectBuilder<T> nonBlockingReads(final boolean nonBlockingReads) {
+        this.nonBlockingReads = nonBlockingReads;
+        return this;
+    }
+
+    /**
+     * Preallocate {@link CommitLog} segments and append to them by memory mapping, replay reads them
+     * from memory mapping as well
+     */
+    public MutableFastSelectBuilder<T> mappedCommitLog(final boolean mappedCommitLog) {
+        this.mappedCommitLog = mappedCommitLog;
+        return this;
+    }
+
+    /**
+     * Write {@link CommitLog} records by columns of data class with dictionary for repeated strings,
+     * otherwise as Kryo object graphs. Enabled by default, both formats are readable in any case.
+     */
+    public MutableFastSelectBuilder<T> columnCommitLog(final boolean columnCommitLog) {
+        this.columnCommitLog = columnCommitLog;
+        return this;
+    }
+
+    /**
+     * Save only changes of {@link CommitLog} since previous data file as delta of added rows and deleted positions,
+     * instead of full {@link FastSelect#save(FileChannel)}. Full data file is saved when deltas reach max count
+     * or half of data file size, and after compaction.
+     *
+     * @param maxDeltas - max count of deltas between data files, 0 to always save data file
+     */
+    public MutableFastSelectBuilder<T> deltaSnapshots(final int maxDeltas) {
+        if (maxDeltas < 0) throw new IllegalArgumentException("Max count of deltas should be >= 0, but " + maxDeltas);
+        this.deltaSnapshots = maxDeltas;
+        return this;
+    }
+
+    /**
+     * Return from {@link #create()} right after commit log is opened and load data file, indexes and commit log
+     * on background thread. Selects and modifications wait until data is loaded, load error is thrown by them.
+     * Data is still fully loaded to heap, so it doesn't make first query faster or serve data larger than heap.
+     */
+    public MutableFastSelectBuilder<T> asyncOpen(final boolean asyncOpen) {
+        this.asyncOpen = asyncOpen;
+        return this;
+    }
+
+    /**
+     * Keep deleted rows bitmap, id and secondary indexes in direct memory, so they don't take heap and
+     * are not scanned by GC. Limited by -XX:MaxDirectMemorySize. Columns stay on heap in {@link FastSelect}.
+     * Memory of grown buffers and of copies built by snapshot and compaction is released right away,
+     * rest by {@link MutableFastSelect#close()}.
+     */
+    public MutableFastSelectBuilder<T> offHeap(final boolean offHeap) {
+        this.offHeap = offHeap;
+        return this;
+    }
+
+    /**
+     * @param ingestQueue - size of queue for {@link MutableFastSelect#modifyAsync(Modifier)} and what to do when
+     *                    it's full
+     */
+    public MutableFastSelectBuilder<T> ingestQueue(final IngestQueue ingestQueue) {
+        this.ingestQueue = ingestQueue;
+        return this;
+    }
+
+    /**
+     * Keep secondary index on column up to date with modifications and save it with data file,
+     * available by {@link Positions#index(String)}
+     *
+     * @param column - name of column
+     * @param type   - {@link IndexType#SORTED} for range lookups or {@link IndexType#HASH}
+     */
+    public MutableFastSelectBuilder<T> index(final String column, final IndexType type) {
+        indexes.put(column, type);
+        return this;
+    }
+
+    /**
+     * @return - builder with same settings for other directory
+     */
+    MutableFastSelectBuilder<T> copy(final File dir) {
+        final MutableFastSelectBuilder<T> copy = new MutableFastSelectBuilder<>(clazz, dir);
+        copy.useLog = useLog;
+        copy.commitLogThreshold = commitLogThreshold;
+        copy.durability = durability;
+        copy.groupCommit = groupCommit;
+        copy.compaction = compaction;
+        copy.nonBlockingReads = nonBlockingReads;
+        copy.mappedCommitLog = mappedCommitLog;
+        copy.columnCommitLog = columnCommitLog;
+        copy.deltaSnapshots = deltaSnapshots;
+        copy.asyncOpen = asyncOpen;
+        copy.offHeap = offHeap;
+        copy.ingestQueue = ingestQueue;
+        copy.indexes.putAll(indexes);
+        return copy;
+    }
+
+    public MutableFastSelect<T> create() {
+        return new MutableFastSelect<>(this);
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+/**
+ * Read only index of not deleted rows of {@link MutableFastSelect} by id and liveness of rows.
+ * Valid only inside {@link Selector#execute} or {@link Modifier#execute}.
+ *
+ * @see Selector
+ * @see Modifier
+ */
+public interface Positions {
+
+    /**
+     * @return - count of ids
+     */
+    int size();
+
+    boolean contains(Object id);
+
+    /**
+     * @return - count of rows with id, usually 1 or 0
+     */
+    int count(Object id);
+
+    /**
+     * @return - first position of id or -1 if no such id
+     */
+    int first(Object id);
+
+    /**
+     * @return - positions of id in order of adding, empty if no such id
+     */
+    int[] get(Object id);
+
+    /**
+     * Same as {@link #first(Object)}, for long or int id column without boxing
+     *
+     * @return - first position of id or -1 if no such id
+     */
+    int first(long id);
+
+    /**
+     * Same as {@link #get(Object)}, for long or int id column without boxing
+     *
+     * @return - positions of id in order of adding, empty if no such id
+     */
+    int[] get(long id);
+
+    /**
+     * @return - secondary index declared by {@link MutableFastSelectBuilder#index(String, IndexType)}
+     * @throws IllegalArgumentException - if there is no index for column
+     */
+    ColumnIndex index(String column);
+
+    /**
+     * @return - true if row at position is deleted
+     */
+    boolean deleted(int position);
+
+    /**
+     * Iterate live rows, skips 64 deleted rows per check:
+     * {@code for (int i = positions.nextLive(0); i >= 0; i = positions.nextLive(i + 1))}
+     *
+     * @return - first not deleted row starting from position or -1 if no such
+     */
+    int nextLive(int from);
+
+}
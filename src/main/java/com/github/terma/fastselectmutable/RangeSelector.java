@@ -0,0 +1,36 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+import com.github.terma.fastselect.FastSelect;
+
+/**
+ * {@link ResultSelector} for range of rows, executed on chunks of data in parallel
+ * by {@link MutableFastSelect#parallelSelect(RangeSelector, Reducer)}, should be thread safe
+ *
+ * @param <T>
+ * @param <R> - result
+ */
+public interface RangeSelector<T, R> {
+
+    /**
+     * @param from - first row, inclusive
+     * @param to   - last row, exclusive
+     * @return - result for rows in range
+     */
+    R execute(FastSelect<T> data, Positions positions, int from, int to);
+
+}
@@ -0,0 +1,123 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Drains source iterator on separate thread to bounded queue, so reading and decoding overlaps
+ * with consumer work while only few elements are in memory.
+ * <p>
+ * Should be closed when consumer stops, otherwise thread waits for space in queue forever
+ * and keeps source open. Source is closed by thread when it's done if it's {@link Closeable}.
+ */
+class ReadAheadIterator<E> implements Iterator<E>, Closeable {
+
+    private static final Object END = new Object();
+
+    private final BlockingQueue<Object> queue;
+    private final Thread thread;
+    private Object next;
+
+    ReadAheadIterator(final Iterator<E> source, final int capacity, final String name) {
+        queue = new ArrayBlockingQueue<>(capacity);
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (source.hasNext()) queue.put(source.next());
+                    queue.put(END);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Throwable e) {
+                    try {
+                        queue.put(new Failure(e));
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                } finally {
+                    if (source instanceof Closeable) {
+                        try {
+                            ((Closeable) source).close();
+                        } catch (IOException e) {
+                            // nothing to do, reading is done
+                        }
+                    }
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            try {
+                next = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+        if (next instanceof Failure) {
+            final Throwable exception = ((Failure) next).exception;
+            if (exception instanceof RuntimeException) throw (RuntimeException) exception;
+            if (exception instanceof Error) throw (Error) exception;
+            throw new RuntimeException(exception);
+        }
+        return next != END;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public E next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        final E result = (E) next;
+        next = null;
+        return result;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stop thread if it's still reading and drop elements which are not consumed
+     */
+    @Override
+    public void close() {
+        thread.interrupt();
+        queue.clear();
+    }
+
+    private static class Failure {
+
+        private final Throwable exception;
+
+        Failure(final Throwable exception) {
+            this.exception = exception;
+        }
+
+    }
+
+}
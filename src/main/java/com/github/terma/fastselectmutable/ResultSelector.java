@@ -0,0 +1,32 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+import com.github.terma.fastselect.FastSelect;
+
+/**
+ * {@link Selector} which returns result, so it can be executed on parts of data in parallel
+ * and results combined by {@link Reducer}
+ *
+ * @param <T>
+ * @param <R> - result
+ * @see ShardedMutableFastSelect
+ */
+public interface ResultSelector<T, R> {
+
+    R execute(FastSelect<T> data, Positions positions);
+
+}
@@ -0,0 +1,124 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Sequential reader of framed records of one {@link CommitLog} segment: int length, int CRC32, payload.
+ * Stops at end of file, at zero header which starts not written tail of {@link MappedSegment}
+ * or at first incomplete or damaged record.
+ * <p>
+ * Reads by buffered stream or from memory mapping of file.
+ */
+class SegmentReader implements Closeable {
+
+    static final int HEADER_SIZE = 8;
+
+    private final CRC32 crc = new CRC32();
+    private final DataInputStream input;
+    private final MappedByteBuffer mapped;
+    private final long length;
+    private long valid;
+    private boolean padding;
+
+    SegmentReader(final File file) throws FileNotFoundException {
+        this(file, false);
+    }
+
+    SegmentReader(final File file, final boolean map) throws FileNotFoundException {
+        this.length = file.length();
+        if (map && length <= Integer.MAX_VALUE) {
+            try (final FileChannel fileChannel = new RandomAccessFile(file, "r").getChannel()) {
+                this.mapped = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            } catch (FileNotFoundException e) {
+                throw e;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            this.input = null;
+        } else {
+            this.mapped = null;
+            this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        }
+    }
+
+    /**
+     * @return - payload of next valid record or null if no more
+     */
+    byte[] next() throws IOException {
+        if (padding || valid + HEADER_SIZE > length) return null;
+
+        final int size = readInt();
+        final int checksum = readInt();
+        if (size == 0 && checksum == 0) {
+            padding = true;
+            return null;
+        }
+        if (size < 0 || valid + HEADER_SIZE + size > length) return null;
+
+        final byte[] payload = new byte[size];
+        if (mapped == null) input.readFully(payload);
+        else mapped.get(payload);
+        crc.reset();
+        crc.update(payload);
+        if ((int) crc.getValue() != checksum) return null;
+
+        valid += HEADER_SIZE + size;
+        return payload;
+    }
+
+    /**
+     * @return - size of valid records read so far
+     */
+    long valid() {
+        return valid;
+    }
+
+    /**
+     * @return - true if reading stopped before end of segment not because of not written tail
+     */
+    boolean damaged() {
+        return valid < length && !padding;
+    }
+
+    /**
+     * @return - size of valid part of segment
+     */
+    static long validate(final File file) {
+        try (final SegmentReader reader = new SegmentReader(file)) {
+            while (reader.next() != null) ;
+            return reader.valid();
+        } catch (FileNotFoundException e) {
+            return 0;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private int readInt() throws IOException {
+        return mapped == null ? input.readInt() : mapped.getInt();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (input != null) input.close();
+    }
+
+}
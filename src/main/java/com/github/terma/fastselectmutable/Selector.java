@@ -17,9 +17,6 @@ package com.github.terma.fastselectmutable;
 
 import com.github.terma.fastselect.FastSelect;
 
-import java.util.List;
-import java.util.Map;
-
 /**
  * @param <T>
  * @see Modifier
@@ -27,6 +24,6 @@ import java.util.Map;
  */
 public interface Selector<T> {
 
-    void execute(FastSelect<T> data, Map<Object, List<Integer>> positions);
+    void execute(FastSelect<T> data, Positions positions);
 
 }
@@ -0,0 +1,65 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+import com.github.terma.fastselect.FastSelect;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * {@link Modifier} to set some columns of rows with id, other columns are not changed.
+ * <p>
+ * Numeric columns (int, long, float, double) are set in place and only new values
+ * are written to {@link CommitLog}. If any other column is set, including byte and short ones which
+ * fast-select indexes per block, row is deleted and its copy with new values is added,
+ * same as {@link Updater#update(Item[])}. 'id' and 'deleted' columns can't be set.
+ *
+ * <pre>
+ * m.modify(Setter.&lt;Data&gt;set(5L, "amount", 10L).set("price", 1.5));
+ * </pre>
+ */
+@SuppressWarnings("WeakerAccess")
+public class Setter<T extends Item> implements Modifier<T> {
+
+    final Object id;
+    private final Map<String, Object> values = new LinkedHashMap<>();
+
+    public Setter(final Object id) {
+        this.id = id;
+    }
+
+    public static <T extends Item> Setter<T> set(final Object id, final String column, final Object value) {
+        return new Setter<T>(id).set(column, value);
+    }
+
+    /**
+     * @return - this setter
+     */
+    public Setter<T> set(final String column, final Object value) {
+        values.put(column, value);
+        return this;
+    }
+
+    @Override
+    public void execute(final DeleteAndAdd<T> acc, final FastSelect data, final Positions positions) {
+        for (final int position : positions.get(id)) {
+            for (final Map.Entry<String, Object> value : values.entrySet())
+                acc.set.add(new ColumnUpdate(position, value.getKey(), value.getValue()));
+        }
+    }
+
+}
@@ -0,0 +1,253 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+import com.github.terma.fastselect.FastSelect;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Data partitioned by hash of {@link Item#getId()} to independent {@link MutableFastSelect} shards,
+ * each has own lock, commit log and data file in dir/shard-N. Modifications and selects are executed
+ * on shards in parallel, by separate threads, so long selects don't delay modifications.
+ * <p>
+ * Modification which touches several shards is durable per shard, after crash only part of it could be restored.
+ * Count of shards can't be changed for existent data.
+ */
+@SuppressWarnings("WeakerAccess")
+@ThreadSafe
+public class ShardedMutableFastSelect<T extends Item> implements Closeable {
+
+    private static final String SHARDS_FILENAME = "shards";
+
+    private final List<MutableFastSelect<T>> shards;
+    private final ExecutorService readExecutor;
+    private final ExecutorService writeExecutor;
+
+    /**
+     * @param builder - settings for each shard, {@link MutableFastSelectBuilder} dir is root for shard dirs
+     * @param count   - count of shards
+     */
+    public ShardedMutableFastSelect(final MutableFastSelectBuilder<T> builder, final int count) {
+        if (count < 1) throw new IllegalArgumentException("count of shards should be positive, but: " + count);
+        checkCount(builder.dir, count);
+
+        readExecutor = Executors.newFixedThreadPool(count, new DaemonThreadFactory("sharded-mutable-fast-select-read"));
+        writeExecutor = Executors.newFixedThreadPool(count, new DaemonThreadFactory("sharded-mutable-fast-select-write"));
+        final List<Callable<MutableFastSelect<T>>> opens = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final File dir = new File(builder.dir, "shard-" + i);
+            opens.add(new Callable<MutableFastSelect<T>>() {
+                @Override
+                public MutableFastSelect<T> call() {
+                    if (!dir.exists() && !dir.mkdirs()) throw new RuntimeException("Can't create " + dir);
+                    return builder.copy(dir).create();
+                }
+            });
+        }
+        shards = Collections.unmodifiableList(invokeAll(writeExecutor, opens));
+    }
+
+    public int shards() {
+        return shards.size();
+    }
+
+    /**
+     * @return - index of shard for id, integral numbers are routed by value as {@link Long}, null to first shard
+     */
+    public int shard(final Object id) {
+        final int hash;
+        if (id instanceof Integer || id instanceof Short || id instanceof Byte)
+            hash = Long.valueOf(((Number) id).longValue()).hashCode();
+        else hash = id == null ? 0 : id.hashCode();
+        return (hash & Integer.MAX_VALUE) % shards.size();
+    }
+
+    public void update(final T... updates) {
+        modify(Collections.<String>emptyList(), Arrays.asList(updates));
+    }
+
+    public void delete(final String... ids) {
+        modify(Arrays.asList(ids), Collections.<T>emptyList());
+    }
+
+    public void delete(final long... ids) {
+        final List<Long> list = new ArrayList<>(ids.length);
+        for (final long id : ids) list.add(id);
+        modify(list, Collections.<T>emptyList());
+    }
+
+    /**
+     * Apply setter on shard of its id
+     */
+    public void set(final Setter<T> setter) {
+        shards.get(shard(setter.id)).modify(setter);
+    }
+
+    /**
+     * Split ids and updates by shards and apply {@link Updater} on each of them in parallel
+     */
+    public void modify(final List<?> ids, final List<T> updates) {
+        final List<List<Object>> shardIds = new ArrayList<>();
+        final List<List<T>> shardUpdates = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++) {
+            shardIds.add(new ArrayList<>());
+            shardUpdates.add(new ArrayList<T>());
+        }
+        for (final Object id : ids) shardIds.get(shard(id)).add(id);
+        for (final T update : updates) shardUpdates.get(shard(update.getId())).add(update);
+
+        final List<Callable<Void>> modifications = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++) {
+            if (shardIds.get(i).isEmpty() && shardUpdates.get(i).isEmpty()) continue;
+            final MutableFastSelect<T> shard = shards.get(i);
+            final Updater<T> updater = new Updater<>(shardIds.get(i), shardUpdates.get(i));
+            modifications.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    shard.modify(updater);
+                    return null;
+                }
+            });
+        }
+        invokeAll(writeExecutor, modifications);
+    }
+
+    /**
+     * Execute selector on all shards in parallel, selector should be thread safe
+     *
+     * @return - results of shards combined by reducer in order of shards
+     */
+    public <R> R select(final ResultSelector<T, R> selector, final Reducer<R> reducer) {
+        final List<Callable<R>> selects = new ArrayList<>();
+        for (final MutableFastSelect<T> shard : shards) {
+            selects.add(new Callable<R>() {
+                @Override
+                public R call() {
+                    final List<R> result = new ArrayList<>(1);
+                    shard.select(new Selector<T>() {
+                        @Override
+                        public void execute(final FastSelect<T> data, final Positions positions) {
+                            result.add(selector.execute(data, positions));
+                        }
+                    });
+                    return result.get(0);
+                }
+            });
+        }
+
+        final List<R> results = invokeAll(readExecutor, selects);
+        R result = results.get(0);
+        for (int i = 1; i < results.size(); i++) result = reducer.reduce(result, results.get(i));
+        return result;
+    }
+
+    /**
+     * Compact all shards in parallel
+     *
+     * @see MutableFastSelect#compact()
+     */
+    public void compact() {
+        final List<Callable<Void>> compactions = new ArrayList<>();
+        for (final MutableFastSelect<T> shard : shards) {
+            compactions.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    shard.compact();
+                    return null;
+                }
+            });
+        }
+        invokeAll(writeExecutor, compactions);
+    }
+
+    @Override
+    public void close() {
+        try {
+            for (final MutableFastSelect<T> shard : shards) shard.close();
+        } finally {
+            readExecutor.shutdown();
+            writeExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Single task, like modification of one shard, is executed by caller thread
+     */
+    private static <R> List<R> invokeAll(final ExecutorService executor, final List<Callable<R>> tasks) {
+        if (tasks.size() == 1) {
+            try {
+                return Collections.singletonList(tasks.get(0).call());
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        final List<Future<R>> futures;
+        try {
+            futures = executor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+
+        final List<R> results = new ArrayList<>(futures.size());
+        RuntimeException failure = null;
+        for (final Future<R> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                if (failure == null) failure = new RuntimeException(e.getCause());
+                else failure.addSuppressed(e.getCause());
+            }
+        }
+        if (failure != null) throw failure;
+        return results;
+    }
+
+    /**
+     * Save count of shards on first start and check it on next ones, as ids are routed by it
+     */
+    private static void checkCount(final File dir, final int count) {
+        final File file = new File(dir, SHARDS_FILENAME);
+        try {
+            if (file.exists()) {
+                final int saved = Integer.parseInt(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim());
+                if (saved != count)
+                    throw new IllegalArgumentException("Data in " + dir + " has " + saved + " shards, but requested: " + count);
+            } else {
+                if (!dir.exists() && !dir.mkdirs()) throw new IOException("Can't create " + dir);
+                Files.write(file.toPath(), Integer.toString(count).getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
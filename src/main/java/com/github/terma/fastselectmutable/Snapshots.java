@@ -0,0 +1,643 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.github.terma.fastselect.FastSelect;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Data files saved by {@link FastSelect#save(FileChannel)}: data-N.bin where N is id of last
+ * {@link CommitLog} segment included in it.
+ * <p>
+ * Manifest keeps current and previous generation of data file with size and checksum, and ones they are based on.
+ * If current one is damaged startup falls back to previous one plus commit log, so segments are removed only when
+ * they are included in previous generation.
+ * <p>
+ * Legacy data.bin or data files without manifest don't have checksum and used as is.
+ * <p>
+ * Next to data file {@link IdIndex} for it is saved as positions-N.idx, it's rebuilt from data if missed
+ * or damaged, same for secondary indexes saved as index-column-N.idx. {@link Tombstones} are saved as
+ * deleted-N.bits, they are required for data without 'deleted' column, so generation with damaged one
+ * falls back to previous like with damaged data file. Sizes and checksums of them are kept in manifest
+ * with data file, they are renamed before data file so data file is never published without them.
+ * <p>
+ * Between data files changes of sealed segments are saved as delta-N.bin: records of {@link ColumnCodec}
+ * with rows added after previous generation by batches, then positions deleted since it. Delta generation
+ * refers to previous one, chain of deltas is loaded on top of data file. Next data file is saved instead
+ * of delta when chain reaches max count of deltas or deltas are big compared to data file, or after compaction.
+ */
+class Snapshots {
+
+    private static final Logger LOGGER = Logger.getAnonymousLogger();
+
+    static final long NONE = -1;
+
+    private static final String LEGACY_FILENAME = "data.bin";
+    private static final String MANIFEST_FILENAME = "manifest";
+    private static final String PREFIX = "data-";
+    private static final String SUFFIX = ".bin";
+    private static final String INDEX_PREFIX = "positions-";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String COLUMN_INDEX_PREFIX = "index-";
+    private static final String TOMBSTONES_PREFIX = "deleted-";
+    private static final String TOMBSTONES_SUFFIX = ".bits";
+    private static final String DELTA_PREFIX = "delta-";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final int DELTA_BATCH = 10000;
+
+    private final File dir;
+    private final boolean useLog;
+    private final int maxDeltas;
+
+    private volatile Generation current;
+    /**
+     * generations in manifest, their files are kept
+     */
+    private List<Generation> generations;
+    private long lastGeneration;
+
+    Snapshots(final File dir, final boolean useLog) {
+        this(dir, useLog, 0);
+    }
+
+    /**
+     * @param maxDeltas - max count of deltas between data files, 0 to always save data file
+     */
+    Snapshots(final File dir, final boolean useLog, final int maxDeltas) {
+        this.dir = dir;
+        this.useLog = useLog;
+        this.maxDeltas = maxDeltas;
+
+        generations = readManifest();
+        for (final Generation generation : generations) {
+            lastGeneration = Math.max(lastGeneration, generation.generation);
+
+            if (current == null) {
+                if (verify(generation)) current = generation;
+                else LOGGER.warning("Data file " + file(generation) + " or one before it is damaged, fallback to previous");
+            }
+        }
+        if (!generations.isEmpty() && current == null)
+            throw new IllegalStateException("No valid data file in " + dir + " for " + generations);
+
+        // no manifest, data file from older version
+        if (generations.isEmpty()) {
+            final long segment = latestFile();
+            if (segment != NONE) current = new Generation(0, segment, 0, 0, NONE);
+        }
+    }
+
+    /**
+     * @return - id of last {@link CommitLog} segment included in current data file or {@link #NONE}
+     */
+    long latest() {
+        final Generation generation = current;
+        return generation == null ? NONE : generation.segment;
+    }
+
+    /**
+     * @return - true if next generation should be data file instead of delta
+     */
+    boolean baseDue() {
+        final Generation generation = current;
+        // data file without manifest has no checksum
+        if (generation == null || generations.isEmpty()) return true;
+
+        final List<Generation> chain = chain(generation);
+        long deltaSize = 0;
+        for (final Generation delta : chain.subList(1, chain.size())) deltaSize += delta.size;
+        return chain.size() > maxDeltas || deltaSize * 2 > chain.get(0).size;
+    }
+
+    /**
+     * Load data file of current generation if any, deltas are applied by {@link #applyDeltas(Table, Class)}
+     */
+    void load(final FastSelect<?> data, final int threads) {
+        final Generation generation = base();
+        final File file = generation == null ? new File(dir, LEGACY_FILENAME) : file(generation);
+        try (final FileChannel fileChannel = new FileInputStream(file).getChannel()) {
+            data.load(fileChannel, threads);
+        } catch (FileNotFoundException e) {
+            // ok, just no data to restore
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return - index saved with current data file or null if no such or it doesn't match data
+     */
+    IdIndex loadIndex(final Table<?> table) {
+        final Generation generation = base();
+        if (generation == null || !verify(generation, indexFile(generation.segment))) return null;
+        return IdIndex.load(indexFile(generation.segment), table.idData, table.data.size(), table.offHeap);
+    }
+
+    /**
+     * @return - secondary index saved with current data file or null if no such or it doesn't match data
+     */
+    IdIndex loadIndex(final Table<?> table, final ColumnPositions columnIndex) {
+        final Generation generation = base();
+        final File file = generation == null ? null : columnIndexFile(columnIndex.column, generation.segment);
+        if (file == null || !verify(generation, file)) return null;
+        return IdIndex.load(file, columnIndex.data, table.data.size(), table.offHeap);
+    }
+
+    /**
+     * @return - tombstones from 'deleted' column if data has it, otherwise saved with current data file
+     * @throws IllegalStateException - if there are no valid tombstones for data, generation with damaged
+     * tombstones in manifest is skipped on open so only one without them in manifest could fail here
+     */
+    Tombstones loadTombstones(final Table<?> table) {
+        final int rows = table.data.size();
+        if (table.deletedData != null) return Tombstones.fromColumn(table.deletedData.data, rows, table.offHeap);
+        if (rows == 0) return new Tombstones(0, table.offHeap);
+
+        final Generation generation = base();
+        final Tombstones tombstones = generation == null ? null
+                : Tombstones.load(tombstonesFile(generation.segment), rows, table.offHeap);
+        if (tombstones == null) throw new IllegalStateException("No valid deleted rows file for data in " + dir);
+        return tombstones;
+    }
+
+    /**
+     * Apply deltas of current generation to table loaded from its data file
+     */
+    <T extends Item> void applyDeltas(final Table<T> table, final Class<T> clazz) {
+        final Generation generation = current;
+        if (generation == null) return;
+
+        final List<Generation> chain = chain(generation);
+        if (chain.size() == 1) return;
+
+        final Kryo kryo = new Kryo();
+        final ColumnCodec<T> codec = new ColumnCodec<>(clazz);
+        for (final Generation delta : chain.subList(1, chain.size())) {
+            try (final SegmentReader reader = new SegmentReader(file(delta))) {
+                byte[] payload;
+                while ((payload = reader.next()) != null) {
+                    if (!ColumnCodec.marked(payload))
+                        throw new IllegalStateException("Unknown record in delta " + file(delta));
+                    table.apply(codec.read(kryo, new Input(payload)));
+                }
+                if (reader.damaged()) throw new IllegalStateException("Delta " + file(delta) + " is damaged");
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Save changes of {@link CommitLog} records since current generation as delta, same as {@link #publish(Table, long)}
+     * but without indexes and tombstones which are rebuilt from deltas on load.
+     * <p>
+     * Added rows are written first by batches, deletes after them and values set in place last in order of records,
+     * so applied in same order they give same data as records, values of rows deleted in between are skipped.
+     * Positions don't change between generations as there is no compaction in between.
+     *
+     * @param records - records of sealed segments after current generation up to segment
+     * @param segment - id of last {@link CommitLog} segment included in delta
+     * @return - id of last {@link CommitLog} segment which is not needed any more or {@link #NONE}
+     */
+    <T extends Item> long publishDelta(final Iterator<DeleteAndAdd<T>> records, final Class<T> clazz,
+                                       final long segment) throws IOException {
+        final Generation before = current;
+        if (before == null) throw new IllegalStateException("No data file for delta in " + dir);
+
+        final Kryo kryo = new Kryo();
+        final ColumnCodec<T> codec = new ColumnCodec<>(clazz);
+        final Output output = new Output(64 * 1024, -1);
+        final File tmp = new File(dir, DELTA_PREFIX + segment + SUFFIX + TMP_SUFFIX);
+        try (final OutputStream stream = new BufferedOutputStream(new FileOutputStream(tmp))) {
+            final List<Integer> delete = new ArrayList<>();
+            final List<T> add = new ArrayList<>(DELTA_BATCH);
+            final List<ColumnUpdate> set = new ArrayList<>();
+            while (records.hasNext()) {
+                final DeleteAndAdd<T> record = records.next();
+                delete.addAll(record.delete);
+                set.addAll(record.set);
+                for (final T row : record.add) {
+                    add.add(row);
+                    if (add.size() == DELTA_BATCH) {
+                        writeDelta(kryo, codec, output, stream, Collections.<Integer>emptyList(), add);
+                        add.clear();
+                    }
+                }
+            }
+            if (!add.isEmpty()) writeDelta(kryo, codec, output, stream, Collections.<Integer>emptyList(), add);
+            Collections.sort(delete);
+            if (!delete.isEmpty()) writeDelta(kryo, codec, output, stream, delete, Collections.<T>emptyList());
+            for (int i = 0; i < set.size(); i += DELTA_BATCH) {
+                output.clear();
+                CommitLog.frame(kryo, codec, output, new DeleteAndAdd<>(Collections.<Integer>emptyList(),
+                        Collections.<T>emptyList(), set.subList(i, Math.min(set.size(), i + DELTA_BATCH))));
+                stream.write(output.getBuffer(), 0, output.position());
+            }
+        }
+        try (final FileChannel fileChannel = new RandomAccessFile(tmp, "rw").getChannel()) {
+            fileChannel.force(true);
+        }
+
+        final Generation generation = new Generation(lastGeneration + 1, segment, tmp.length(), checksum(tmp),
+                before.segment);
+        Files.move(tmp.toPath(), file(generation).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        forceDir(dir);
+        return commit(generation);
+    }
+
+    private static <T> void writeDelta(final Kryo kryo, final ColumnCodec<T> codec, final Output output,
+                                       final OutputStream stream, final List<Integer> delete,
+                                       final List<T> add) throws IOException {
+        output.clear();
+        CommitLog.frame(kryo, codec, output, new DeleteAndAdd<>(delete, add));
+        stream.write(output.getBuffer(), 0, output.position());
+    }
+
+    /**
+     * Save data, index and tombstones to temp files, force them and atomically rename, data file last,
+     * then atomically replace manifest with new and previous generation. Older data files are removed after.
+     * <p>
+     * Not thread safe, should be called by one thread.
+     *
+     * @param segment - id of last {@link CommitLog} segment included in data
+     * @return - id of last {@link CommitLog} segment which is not needed any more or {@link #NONE}
+     */
+    long publish(final Table<?> table, final long segment) throws IOException {
+        final File tmp = new File(dir, PREFIX + segment + SUFFIX + TMP_SUFFIX);
+        try (final FileChannel fileChannel = new RandomAccessFile(tmp, "rw").getChannel()) {
+            fileChannel.truncate(0);
+            table.data.save(fileChannel);
+            fileChannel.force(true);
+        }
+
+        final List<File> files = new ArrayList<>();
+        files.add(tombstonesFile(segment));
+        table.tombstones.save(tmp(tombstonesFile(segment)));
+        files.add(indexFile(segment));
+        table.index.save(tmp(indexFile(segment)), table.data.size());
+        for (final ColumnPositions columnIndex : table.indexes.values()) {
+            files.add(columnIndexFile(columnIndex.column, segment));
+            columnIndex.positions().save(tmp(columnIndexFile(columnIndex.column, segment)), table.data.size());
+        }
+
+        final List<Part> parts = new ArrayList<>();
+        for (final File file : files) {
+            try (final FileChannel fileChannel = new RandomAccessFile(tmp(file), "rw").getChannel()) {
+                fileChannel.force(true);
+            }
+            parts.add(new Part(file.getName(), tmp(file).length(), checksum(tmp(file))));
+            Files.move(tmp(file).toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        final Generation generation = new Generation(lastGeneration + 1, segment, tmp.length(), checksum(tmp), NONE,
+                parts);
+        Files.move(tmp.toPath(), file(segment).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        forceDir(dir);
+        return commit(generation);
+    }
+
+    /**
+     * Replace manifest with new generation and previous one with generations they are based on,
+     * then remove files of others
+     *
+     * @return - id of last {@link CommitLog} segment which is not needed any more or {@link #NONE}
+     */
+    private long commit(final Generation generation) throws IOException {
+        final Generation before = current;
+        final Set<Generation> kept = new TreeSet<>();
+        kept.add(generation);
+        if (before != null) kept.addAll(chain(before));
+
+        final List<Generation> manifest = new ArrayList<>(kept);
+        writeManifest(manifest);
+        generations = manifest;
+        lastGeneration = generation.generation;
+        current = generation;
+        if (useLog) LOGGER.info("publish " + generation);
+
+        deleteOlder();
+        return before == null ? NONE : before.segment;
+    }
+
+    /**
+     * @return - data file generation of current one or null
+     */
+    private Generation base() {
+        final Generation generation = current;
+        return generation == null ? null : chain(generation).get(0);
+    }
+
+    /**
+     * @return - generations from data file to this one
+     * @throws IllegalStateException - if generation refers to one which is not in manifest
+     */
+    private List<Generation> chain(Generation generation) {
+        final LinkedList<Generation> chain = new LinkedList<>();
+        chain.addFirst(generation);
+        while (generation.delta()) {
+            final long after = generation.after;
+            generation = null;
+            for (final Generation candidate : generations) {
+                if (candidate.segment == after && candidate.generation < chain.getFirst().generation)
+                    generation = candidate;
+            }
+            if (generation == null) throw new IllegalStateException("No generation for segment " + after + " in " + dir);
+            chain.addFirst(generation);
+        }
+        return chain;
+    }
+
+    /**
+     * @return - true if generation and all it's based on are not damaged, including tombstones of data file
+     */
+    private boolean verify(final Generation generation) {
+        try {
+            for (final Generation part : chain(generation)) {
+                final File file = file(part);
+                if (file.length() != part.size || checksum(file) != part.checksum) return false;
+                if (!part.delta() && !verify(part, tombstonesFile(part.segment))) return false;
+            }
+            return true;
+        } catch (IOException | IllegalStateException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return - true if file matches size and checksum in manifest or it's not in manifest
+     */
+    private boolean verify(final Generation generation, final File file) {
+        for (final Part part : generation.parts) {
+            if (!part.name.equals(file.getName())) continue;
+            try {
+                if (file.length() == part.size && checksum(file) == part.checksum) return true;
+            } catch (IOException e) {
+                // missed or can't be read
+            }
+            LOGGER.warning("File " + file + " is damaged");
+            return false;
+        }
+        return true;
+    }
+
+    private static long checksum(final File file) throws IOException {
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[64 * 1024];
+        try (final InputStream inputStream = new FileInputStream(file)) {
+            int read;
+            while ((read = inputStream.read(buffer)) > 0) crc.update(buffer, 0, read);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * @return - generations newest first
+     */
+    private List<Generation> readManifest() {
+        final List<Generation> generations = new ArrayList<>();
+        final File manifest = new File(dir, MANIFEST_FILENAME);
+        if (!manifest.exists()) return generations;
+
+        try {
+            for (final String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                generations.add(Generation.parse(line));
+            }
+        } catch (IOException | RuntimeException e) {
+            throw new IllegalStateException("Can't read " + manifest, e);
+        }
+        return generations;
+    }
+
+    private void writeManifest(final List<Generation> generations) throws IOException {
+        final StringBuilder content = new StringBuilder(
+                "# generation segment size checksum [delta after segment] [file:size:checksum...]\n");
+        for (final Generation generation : generations) content.append(generation.format()).append('\n');
+
+        final File tmp = new File(dir, MANIFEST_FILENAME + TMP_SUFFIX);
+        try (final FileChannel fileChannel = new RandomAccessFile(tmp, "rw").getChannel()) {
+            fileChannel.truncate(0);
+            fileChannel.write(StandardCharsets.UTF_8.encode(content.toString()));
+            fileChannel.force(true);
+        }
+        Files.move(tmp.toPath(), new File(dir, MANIFEST_FILENAME).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        forceDir(dir);
+    }
+
+    private long latestFile() {
+        long latest = NONE;
+        final String[] names = dir.list();
+        if (names != null) {
+            for (final String name : names) {
+                final long segment = parse(name, PREFIX, SUFFIX);
+                latest = Math.max(latest, segment);
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * Keep only files of generations in manifest
+     */
+    private void deleteOlder() {
+        final File legacy = new File(dir, LEGACY_FILENAME);
+        if (legacy.exists() && !legacy.delete()) LOGGER.warning("Can't delete " + legacy);
+
+        final Set<Long> kept = new HashSet<>();
+        for (final Generation generation : generations) kept.add(generation.segment);
+
+        final String[] names = dir.list();
+        if (names == null) return;
+        for (final String name : names) {
+            long segment = parse(name, PREFIX, SUFFIX);
+            if (segment == NONE) segment = parse(name, DELTA_PREFIX, SUFFIX);
+            if (segment == NONE) segment = parse(name, INDEX_PREFIX, INDEX_SUFFIX);
+            if (segment == NONE) segment = parse(name, TOMBSTONES_PREFIX, TOMBSTONES_SUFFIX);
+            if (segment == NONE && name.startsWith(COLUMN_INDEX_PREFIX))
+                segment = parse(name.substring(name.lastIndexOf('-')), "-", INDEX_SUFFIX);
+            if (segment == NONE || kept.contains(segment)) continue;
+            if (!new File(dir, name).delete()) LOGGER.warning("Can't delete " + name);
+        }
+    }
+
+    /**
+     * @return - segment of data, index or tombstones file or {@link #NONE} if name doesn't match
+     */
+    private static long parse(final String name, final String prefix, final String suffix) {
+        if (!name.startsWith(prefix) || !name.endsWith(suffix)) return NONE;
+        try {
+            return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+        } catch (NumberFormatException e) {
+            return NONE;
+        }
+    }
+
+    /**
+     * Make rename durable, not supported on some platforms
+     */
+    static void forceDir(final File dir) {
+        try (final FileChannel dirChannel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            dirChannel.force(true);
+        } catch (IOException e) {
+            // ignore, platform doesn't support it
+        }
+    }
+
+    private File file(final long segment) {
+        return new File(dir, PREFIX + segment + SUFFIX);
+    }
+
+    private File file(final Generation generation) {
+        return generation.delta() ? new File(dir, DELTA_PREFIX + generation.segment + SUFFIX) : file(generation.segment);
+    }
+
+    private File indexFile(final long segment) {
+        return new File(dir, INDEX_PREFIX + segment + INDEX_SUFFIX);
+    }
+
+    private File columnIndexFile(final String column, final long segment) {
+        return new File(dir, COLUMN_INDEX_PREFIX + column + "-" + segment + INDEX_SUFFIX);
+    }
+
+    private File tombstonesFile(final long segment) {
+        return new File(dir, TOMBSTONES_PREFIX + segment + TOMBSTONES_SUFFIX);
+    }
+
+    private static File tmp(final File file) {
+        return new File(file.getPath() + TMP_SUFFIX);
+    }
+
+    /**
+     * File saved with data file: index or tombstones
+     */
+    private static class Part {
+
+        final String name;
+        final long size;
+        final long checksum;
+
+        Part(final String name, final long size, final long checksum) {
+            this.name = name;
+            this.size = size;
+            this.checksum = checksum;
+        }
+
+        static Part parse(final String value) {
+            final String[] parts = value.split(":");
+            if (parts.length != 3) throw new IllegalArgumentException("Invalid manifest file: " + value);
+            return new Part(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+        }
+
+        String format() {
+            return name + ":" + size + ":" + checksum;
+        }
+
+    }
+
+    /**
+     * Ordered newest first
+     */
+    private static class Generation implements Comparable<Generation> {
+
+        final long generation;
+        final long segment;
+        final long size;
+        final long checksum;
+        /**
+         * segment of generation which delta is based on or {@link #NONE} for data file
+         */
+        final long after;
+        /**
+         * files saved with data file, empty for delta
+         */
+        final List<Part> parts;
+
+        Generation(final long generation, final long segment, final long size, final long checksum, final long after) {
+            this(generation, segment, size, checksum, after, Collections.<Part>emptyList());
+        }
+
+        Generation(final long generation, final long segment, final long size, final long checksum, final long after,
+                   final List<Part> parts) {
+            this.generation = generation;
+            this.segment = segment;
+            this.size = size;
+            this.checksum = checksum;
+            this.after = after;
+            this.parts = parts;
+        }
+
+        boolean delta() {
+            return after != NONE;
+        }
+
+        static Generation parse(final String line) {
+            final String[] parts = line.trim().split("\\s+");
+            if (parts.length < 4) throw new IllegalArgumentException("Invalid manifest line: " + line);
+            long after = NONE;
+            final List<Part> files = new ArrayList<>();
+            for (int i = 4; i < parts.length; i++) {
+                if (parts[i].indexOf(':') >= 0) files.add(Part.parse(parts[i]));
+                else if (i == 4) after = Long.parseLong(parts[i]);
+                else throw new IllegalArgumentException("Invalid manifest line: " + line);
+            }
+            return new Generation(Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+                    Long.parseLong(parts[2]), Long.parseLong(parts[3]), after, files);
+        }
+
+        String format() {
+            final StringBuilder line = new StringBuilder();
+            line.append(generation).append(' ').append(segment).append(' ').append(size).append(' ').append(checksum);
+            if (delta()) line.append(' ').append(after);
+            for (final Part part : parts) line.append(' ').append(part.format());
+            return line.toString();
+        }
+
+        @Override
+        public int compareTo(final Generation other) {
+            return Long.compare(other.generation, generation);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof Generation && ((Generation) o).generation == generation;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) generation;
+        }
+
+        @Override
+        public String toString() {
+            return "Generation {generation: " + generation + ", segment: " + segment
+                    + ", size: " + size + ", checksum: " + checksum + (delta() ? ", after: " + after : "") + "}";
+        }
+
+    }
+
+}
@@ -0,0 +1,441 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+import com.github.terma.fastselect.FastSelect;
+import com.github.terma.fastselect.FastSelectBuilder;
+import com.github.terma.fastselect.data.*;
+
+import java.lang.reflect.Field;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * {@link FastSelect} with {@link Tombstones} of deleted rows and {@link IdIndex} of not deleted rows by 'id' column.
+ * Used for live data of {@link MutableFastSelect} and for copy built by snapshot, passed as {@link Positions}
+ * to {@link Selector} and {@link Modifier}.
+ * <p>
+ * Secondary {@link ColumnPositions} are kept for declared columns.
+ * <p>
+ * Optional 'deleted' byte column is kept in sync with tombstones for filters like {@code ByteRequest("deleted", 0)}.
+ * <p>
+ * Off heap table keeps tombstones and indexes in direct memory, columns are on heap in {@link FastSelect}.
+ * Direct memory is released by {@link #free()} when nobody reads table.
+ * <p>
+ * Not thread safe.
+ */
+class Table<T extends Item> implements Positions {
+
+    private static final int MIN_INDEX_PARTITION = 100000;
+    private static final int COMPACT_BATCH = 10000;
+
+    private final Class<T> clazz;
+    final boolean offHeap;
+
+    final FastSelect<T> data;
+    /**
+     * 'deleted' column or null if data object doesn't have it
+     */
+    final ByteData deletedData;
+    /**
+     * 'id' column, usually string, long or int
+     */
+    final Data idData;
+    IdIndex index;
+    Tombstones tombstones;
+    private final Map<String, IndexType> indexTypes;
+    /**
+     * secondary indexes by column
+     */
+    final Map<String, ColumnPositions> indexes = new LinkedHashMap<>();
+
+    Table(final Class<T> clazz) {
+        this(clazz, Collections.<String, IndexType>emptyMap());
+    }
+
+    Table(final Class<T> clazz, final Map<String, IndexType> indexTypes) {
+        this(clazz, indexTypes, false);
+    }
+
+    /**
+     * @param offHeap - keep tombstones and indexes in direct memory
+     */
+    Table(final Class<T> clazz, final Map<String, IndexType> indexTypes, final boolean offHeap) {
+        this.clazz = clazz;
+        this.indexTypes = indexTypes;
+        this.offHeap = offHeap;
+        data = new FastSelectBuilder<>(clazz).create();
+
+        final FastSelect.Column deleteColumn = data.getColumnsByNames().get("deleted");
+        deletedData = deleteColumn == null ? null : (ByteData) deleteColumn.data;
+
+        final FastSelect.Column idColumn = data.getColumnsByNames().get("id");
+        if (idColumn == null)
+            throw new IllegalArgumentException("Data object doesn't have 'id' column, only: " + data.getColumns());
+        idData = idColumn.data;
+
+        index = new IdIndex(idData, 0, offHeap);
+        tombstones = new Tombstones(0, offHeap);
+
+        for (final Map.Entry<String, IndexType> indexType : indexTypes.entrySet()) {
+            final FastSelect.Column column = data.getColumnsByNames().get(indexType.getKey());
+            if (column == null) throw new IllegalArgumentException("Data object doesn't have '"
+                    + indexType.getKey() + "' column for index, only: " + data.getColumns());
+            indexes.put(column.name, new ColumnPositions(column.name, indexType.getValue(), column.data, offHeap));
+        }
+    }
+
+    /**
+     * @return - count of deleted rows
+     */
+    int dead() {
+        return tombstones.dead();
+    }
+
+    void apply(final DeleteAndAdd<T> deleteAndAdd) {
+        for (final Integer pos : deleteAndAdd.delete) {
+            if (!tombstones.delete(pos)) continue;
+            if (deletedData != null) deletedData.data[pos] = 1;
+            index.remove(pos);
+            for (final ColumnPositions columnIndex : indexes.values()) columnIndex.remove(pos);
+        }
+
+        int i = data.size();
+        data.addAll(deleteAndAdd.add);
+        tombstones.grow(data.size());
+        for (; i < data.size(); i++) {
+            index.add(i);
+            for (final ColumnPositions columnIndex : indexes.values()) columnIndex.add(i);
+        }
+
+        for (final ColumnUpdate update : deleteAndAdd.set) {
+            if (tombstones.isDeleted(update.position)) continue;
+            final ColumnPositions columnIndex = indexes.get(update.column);
+            if (columnIndex != null) columnIndex.remove(update.position);
+            write(data.getColumnsByNames().get(update.column).data, update.position, (Number) update.value);
+            if (columnIndex != null) columnIndex.add(update.position);
+        }
+    }
+
+    /**
+     * Check positions deleted by modifier and values set by it, then replace values which can't be set in place:
+     * row with value of not numeric
+     * column or null value is deleted and its copy with all new values of row is added instead.
+     * Values for rows deleted by same change are dropped.
+     * <p>
+     * Called before change is written to {@link CommitLog}, so log has only fixed width values to set.
+     *
+     * @param inPlace - false to replace all rows with values, for commit log which can't have values set in place
+     * @throws IllegalArgumentException - if deleted position is out of rows, column is unknown, 'id' or 'deleted'
+     *                                  or row is not live
+     */
+    void expand(final DeleteAndAdd<T> deleteAndAdd, final boolean inPlace) {
+        for (final Integer pos : deleteAndAdd.delete) {
+            if (pos == null || pos < 0 || pos >= data.size())
+                throw new IllegalArgumentException("Can't delete row " + pos + ", rows: " + data.size());
+        }
+        if (deleteAndAdd.set.isEmpty()) return;
+
+        final Set<Integer> deleted = new HashSet<>(deleteAndAdd.delete);
+        final Map<Integer, List<ColumnUpdate>> copies = new LinkedHashMap<>();
+        for (final ColumnUpdate update : deleteAndAdd.set) {
+            final FastSelect.Column column = data.getColumnsByNames().get(update.column);
+            if (column == null || column.name.equals("id") || column.name.equals("deleted"))
+                throw new IllegalArgumentException("Can't set column " + update.column + ", only: " + data.getColumns());
+            if (update.position < 0 || update.position >= data.size() || tombstones.isDeleted(update.position))
+                throw new IllegalArgumentException("Can't set " + update.column + " of not live row " + update.position);
+            if (!inPlace || !fixed(column.data) || !(update.value instanceof Number)) copies.put(update.position, null);
+        }
+
+        final List<ColumnUpdate> set = new ArrayList<>(deleteAndAdd.set.size());
+        for (final ColumnUpdate update : deleteAndAdd.set) {
+            if (deleted.contains(update.position)) continue;
+            if (!copies.containsKey(update.position)) {
+                set.add(update);
+                continue;
+            }
+            List<ColumnUpdate> updates = copies.get(update.position);
+            if (updates == null) {
+                updates = new ArrayList<>();
+                copies.put(update.position, updates);
+            }
+            updates.add(update);
+        }
+
+        final List<FastSelect.Column> columns = data.getColumns();
+        try {
+            for (final Map.Entry<Integer, List<ColumnUpdate>> copy : copies.entrySet()) {
+                if (copy.getValue() == null) continue;
+                final T row = clazz.newInstance();
+                for (final FastSelect.Column column : columns)
+                    field(clazz, column.name).set(row, column.data.get(copy.getKey()));
+                for (final ColumnUpdate update : copy.getValue()) field(clazz, update.column).set(row, update.value);
+                deleteAndAdd.delete.add(copy.getKey());
+                deleteAndAdd.add.add(row);
+            }
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new RuntimeException("Can't copy row of " + clazz, e);
+        }
+
+        deleteAndAdd.set.clear();
+        deleteAndAdd.set.addAll(set);
+    }
+
+    /**
+     * Byte and short columns are not set in place, {@link FastSelect} keeps set of their values per block
+     * to skip blocks for requests, it's filled only by {@link FastSelect#addAll(List)}.
+     *
+     * @return - true if values of column are set in place
+     */
+    static boolean fixed(final Data data) {
+        return data instanceof IntData || data instanceof LongData || data instanceof FloatData
+                || data instanceof DoubleData;
+    }
+
+    /**
+     * Byte and short values are written only by replay of {@link CommitLog} of older version
+     */
+    private static void write(final Data data, final int position, final Number value) {
+        if (data instanceof ByteData) ((ByteData) data).data[position] = value.byteValue();
+        else if (data instanceof ShortData) ((ShortData) data).data[position] = value.shortValue();
+        else if (data instanceof IntData) ((IntData) data).data[position] = value.intValue();
+        else if (data instanceof LongData) ((LongData) data).data[position] = value.longValue();
+        else if (data instanceof FloatData) ((FloatData) data).data[position] = value.floatValue();
+        else ((DoubleData) data).data[position] = value.doubleValue();
+    }
+
+    void buildIndex(final int threads) {
+        use(build(idData, true, threads));
+    }
+
+    /**
+     * Replace id index by loaded or built one, direct memory of previous one is released
+     */
+    void use(final IdIndex index) {
+        this.index.free();
+        this.index = index;
+    }
+
+    /**
+     * Replace tombstones by loaded or built ones, direct memory of previous ones is released
+     */
+    void use(final Tombstones tombstones) {
+        this.tombstones.free();
+        this.tombstones = tombstones;
+    }
+
+    /**
+     * Release direct memory of off heap tombstones and indexes, table can't be used after that
+     */
+    void free() {
+        index.free();
+        tombstones.free();
+        for (final ColumnPositions columnIndex : indexes.values()) columnIndex.free();
+    }
+
+    void buildIndex(final ColumnPositions columnIndex, final int threads) {
+        columnIndex.use(build(columnIndex.data, false, threads));
+    }
+
+    /**
+     * Build id and all secondary indexes
+     */
+    void buildIndexes(final int threads) {
+        buildIndex(threads);
+        for (final ColumnPositions columnIndex : indexes.values()) buildIndex(columnIndex, threads);
+    }
+
+    /**
+     * Hash values of not deleted rows by partitions in parallel, then add them to index in order
+     * to keep positions sorted. Values are read again only on hash collision or zero hash, which
+     * is used for null values.
+     *
+     * @param nulls - index null values with hash 0 like {@link IdIndex#add(int)} for ids, otherwise skip them
+     *              like {@link ColumnPositions#add(int)}
+     */
+    private IdIndex build(final Data column, final boolean nulls, final int threads) {
+        final int size = column.size();
+        final int partitions = Math.max(1, Math.min(threads, size / MIN_INDEX_PARTITION));
+        final int partitionSize = (size + partitions - 1) / partitions;
+        final int[] hashes = new int[size];
+
+        final ExecutorService executor = Executors.newFixedThreadPool(partitions,
+                new DaemonThreadFactory("mutable-fast-select-index"));
+        try {
+            final List<Future<Integer>> futures = new ArrayList<>();
+            for (int p = 0; p < partitions; p++) {
+                final int from = p * partitionSize;
+                final int to = Math.min(size, from + partitionSize);
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        int live = 0;
+                        for (int i = from; i < to; i++) {
+                            if (tombstones.isDeleted(i)) continue;
+                            hashes[i] = IdIndex.hash(column, i);
+                            if (nulls || hashes[i] != 0 || column.get(i) != null) live++;
+                        }
+                        return live;
+                    }
+                }));
+            }
+
+            int live = 0;
+            for (final Future<Integer> future : futures) live += future.get();
+
+            final IdIndex built = new IdIndex(column, live, offHeap);
+            for (int i = 0; i < size; i++) {
+                if (tombstones.isDeleted(i)) continue;
+                if (nulls || hashes[i] != 0 || column.get(i) != null) built.addAt(hashes[i], i);
+            }
+            return built;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * @return - sorted positions of deleted rows
+     */
+    int[] deletedPositions() {
+        return tombstones.deleted();
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public boolean contains(final Object id) {
+        return index.contains(id);
+    }
+
+    @Override
+    public int count(final Object id) {
+        return index.count(id);
+    }
+
+    @Override
+    public int first(final Object id) {
+        return index.first(id);
+    }
+
+    @Override
+    public int[] get(final Object id) {
+        return index.get(id);
+    }
+
+    @Override
+    public int first(final long id) {
+        return index.first(id);
+    }
+
+    @Override
+    public int[] get(final long id) {
+        return index.get(id);
+    }
+
+    /**
+     * @throws IllegalArgumentException - if there is no index for column
+     */
+    @Override
+    public ColumnIndex index(final String column) {
+        final ColumnIndex columnIndex = indexes.get(column);
+        if (columnIndex == null)
+            throw new IllegalArgumentException("No index for column " + column + ", only: " + indexes.keySet());
+        return columnIndex;
+    }
+
+    @Override
+    public boolean deleted(final int position) {
+        return tombstones.isDeleted(position);
+    }
+
+    @Override
+    public int nextLive(final int from) {
+        return tombstones.nextLive(from);
+    }
+
+    /**
+     * Copy rows except removed to new table in same order, removed rows should be deleted
+     *
+     * @param removed - sorted positions
+     */
+    Table<T> compact(final int[] removed, final int threads) {
+        final Table<T> compacted = new Table<>(clazz, indexTypes, offHeap);
+        final List<FastSelect.Column> columns = data.getColumns();
+        final Field[] fields = new Field[columns.size()];
+        for (int c = 0; c < fields.length; c++) fields[c] = field(clazz, columns.get(c).name);
+
+        final int size = data.size();
+        final List<T> batch = new ArrayList<>(COMPACT_BATCH);
+        int r = 0;
+        try {
+            for (int i = 0; i < size; i++) {
+                if (r < removed.length && removed[r] == i) {
+                    r++;
+                    continue;
+                }
+
+                final T row = clazz.newInstance();
+                for (int c = 0; c < fields.length; c++) fields[c].set(row, columns.get(c).data.get(i));
+                batch.add(row);
+                if (batch.size() == COMPACT_BATCH) {
+                    compacted.data.addAll(batch);
+                    batch.clear();
+                }
+            }
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new RuntimeException("Can't copy row of " + clazz, e);
+        }
+        compacted.data.addAll(batch);
+        compacted.use(new Tombstones(compacted.data.size(), offHeap));
+        compacted.buildIndexes(threads);
+        return compacted;
+    }
+
+    /**
+     * @param removed  - sorted positions removed by {@link #compact(int[], int)}
+     * @param rows     - count of rows before compaction
+     * @param position - position before compaction
+     * @return - position after compaction or -1 if row was removed
+     */
+    static int compacted(final int[] removed, final int rows, final int position) {
+        if (position >= rows) return position - removed.length;
+        final int index = Arrays.binarySearch(removed, position);
+        return index >= 0 ? -1 : position - (-index - 1);
+    }
+
+    static Field field(final Class<?> clazz, final String name) {
+        for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+            try {
+                final Field field = c.getDeclaredField(name);
+                field.setAccessible(true);
+                return field;
+            } catch (NoSuchFieldException e) {
+                // try super class
+            }
+        }
+        throw new IllegalArgumentException("No field " + name + " in " + clazz);
+    }
+
+}
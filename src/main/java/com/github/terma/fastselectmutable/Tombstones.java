@@ -0,0 +1,209 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+import java.io.*;
+import java.nio.LongBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Deleted rows as bitmap, one bit per row packed to longs, so live rows could be iterated
+ * by checking 64 rows at once.
+ * <p>
+ * Could be saved to file, format: magic, version, rows, dead, words, CRC32 of all before.
+ * <p>
+ * Off heap tombstones keep words in direct memory, released when they grow and by {@link #free()}.
+ */
+class Tombstones {
+
+    private static final int MAGIC = 0x4D465354;
+    private static final int VERSION = 1;
+
+    private final DirectBuffers buffers;
+    private LongBuffer words;
+    private int rows;
+    private int dead;
+
+    Tombstones(final int rows) {
+        this(rows, false);
+    }
+
+    /**
+     * @param offHeap - keep bitmap in direct memory
+     */
+    Tombstones(final int rows, final boolean offHeap) {
+        this.buffers = new DirectBuffers(offHeap);
+        this.words = buffers.longs(words(rows));
+        this.rows = rows;
+    }
+
+    /**
+     * Build from 'deleted' column of data which has it
+     */
+    static Tombstones fromColumn(final byte[] deleted, final int rows) {
+        return fromColumn(deleted, rows, false);
+    }
+
+    static Tombstones fromColumn(final byte[] deleted, final int rows, final boolean offHeap) {
+        final Tombstones tombstones = new Tombstones(rows, offHeap);
+        for (int i = 0; i < rows; i++) {
+            if (deleted[i] != 0) tombstones.delete(i);
+        }
+        return tombstones;
+    }
+
+    /**
+     * @return - count of rows, new rows are added by {@link #grow(int)}
+     */
+    int rows() {
+        return rows;
+    }
+
+    /**
+     * @return - count of deleted rows
+     */
+    int dead() {
+        return dead;
+    }
+
+    /**
+     * Add live rows up to new count of rows
+     */
+    void grow(final int rows) {
+        if (rows <= this.rows) return;
+        final int length = words(rows);
+        if (length > words.capacity()) {
+            final LongBuffer grown = buffers.longs(Math.max(length, words.capacity() * 2));
+            final LongBuffer used = words.duplicate();
+            used.clear();
+            grown.put(used);
+            grown.clear();
+            buffers.free(words);
+            words = grown;
+        }
+        this.rows = rows;
+    }
+
+    /**
+     * @return - true if row was live
+     */
+    boolean delete(final int position) {
+        final long bit = 1L << position;
+        final int word = position >>> 6;
+        final long value = words.get(word);
+        if ((value & bit) != 0) return false;
+        words.put(word, value | bit);
+        dead++;
+        return true;
+    }
+
+    boolean isDeleted(final int position) {
+        return (words.get(position >>> 6) & (1L << position)) != 0;
+    }
+
+    /**
+     * @return - first live row starting from position or -1 if no such
+     */
+    int nextLive(final int from) {
+        if (from >= rows) return -1;
+        final int length = words(rows);
+        int word = from >>> 6;
+        long live = ~words.get(word) & (-1L << from);
+        while (live == 0) {
+            if (++word == length) return -1;
+            live = ~words.get(word);
+        }
+        final int position = (word << 6) + Long.numberOfTrailingZeros(live);
+        return position < rows ? position : -1;
+    }
+
+    /**
+     * @return - sorted positions of deleted rows
+     */
+    int[] deleted() {
+        final int[] positions = new int[dead];
+        final int length = words(rows);
+        int count = 0;
+        for (int word = 0; word < length; word++) {
+            long bits = words.get(word);
+            while (bits != 0) {
+                positions[count++] = (word << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+            }
+        }
+        return positions;
+    }
+
+    void save(final File file) throws IOException {
+        final CRC32 crc = new CRC32();
+        try (final FileOutputStream fileOutputStream = new FileOutputStream(file)) {
+            final DataOutputStream output = new DataOutputStream(
+                    new CheckedOutputStream(new BufferedOutputStream(fileOutputStream), crc));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(rows);
+            output.writeInt(dead);
+            final int length = words(rows);
+            for (int word = 0; word < length; word++) output.writeLong(words.get(word));
+            output.flush();
+            output.writeLong(crc.getValue());
+            output.flush();
+            fileOutputStream.getChannel().force(true);
+        }
+    }
+
+    /**
+     * @return - tombstones or null if file is absent, damaged or saved for different count of rows
+     */
+    static Tombstones load(final File file, final int rows) {
+        return load(file, rows, false);
+    }
+
+    /**
+     * @param offHeap - keep loaded bitmap in direct memory
+     * @return - tombstones or null if file is absent, damaged or saved for different count of rows
+     */
+    static Tombstones load(final File file, final int rows, final boolean offHeap) {
+        if (!file.exists()) return null;
+
+        final CRC32 crc = new CRC32();
+        try (final DataInputStream input = new DataInputStream(
+                new CheckedInputStream(new BufferedInputStream(new FileInputStream(file)), crc))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION || input.readInt() != rows) return null;
+            final Tombstones tombstones = new Tombstones(rows, offHeap);
+            tombstones.dead = input.readInt();
+            for (int word = 0; word < tombstones.words.capacity(); word++) tombstones.words.put(word, input.readLong());
+            final long expected = crc.getValue();
+            return input.readLong() == expected ? tombstones : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Release direct memory of off heap tombstones, they can't be used after that
+     */
+    void free() {
+        buffers.freeAll();
+    }
+
+    private static int words(final int rows) {
+        return (rows + 63) >>> 6;
+    }
+
+}
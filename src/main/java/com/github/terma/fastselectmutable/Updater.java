@@ -17,10 +17,10 @@ package com.github.terma.fastselectmutable;
 
 import com.github.terma.fastselect.FastSelect;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Basic implementation of {@link Modifier} to add, delete or update data in {@link MutableFastSelect}
@@ -32,10 +32,13 @@ import java.util.Map;
 @SuppressWarnings("WeakerAccess")
 public class Updater<T extends Item> implements Modifier<T> {
 
-    private final List<String> deletes;
+    private final List<?> deletes;
     private final List<T> updates;
 
-    public Updater(final List<String> ids, final List<T> updates) {
+    /**
+     * @param ids - ids to delete, same type as 'id' column or any integral number for long or int one
+     */
+    public Updater(final List<?> ids, final List<T> updates) {
         this.deletes = ids;
         this.updates = updates;
     }
@@ -44,18 +47,25 @@ public class Updater<T extends Item> implements Modifier<T> {
         return new Updater<>(Arrays.asList(ids), Collections.<T>emptyList());
     }
 
+    public static <T extends Item> Updater<T> delete(final long... ids) {
+        final List<Long> list = new ArrayList<>(ids.length);
+        for (final long id : ids) list.add(id);
+        return new Updater<>(list, Collections.<T>emptyList());
+    }
+
     public static <T extends Item> Updater<T> update(final T... updates) {
         return new Updater<>(Collections.<String>emptyList(), Arrays.asList(updates));
     }
 
     @Override
-    public void execute(final DeleteAndAdd<T> acc, final FastSelect data, final Map<Object, List<Integer>> positions) {
+    public void execute(final DeleteAndAdd<T> acc, final FastSelect data, final Positions positions) {
         for (T i : updates) {
-            List<Integer> list = positions.get(i.getId());
-            if (list != null) acc.delete.addAll(list);
+            for (final int position : positions.get(i.getId())) acc.delete.add(position);
         }
 
-        for (String id : deletes) acc.delete.addAll(positions.get(id));
+        for (final Object id : deletes) {
+            for (final int position : positions.get(id)) acc.delete.add(position);
+        }
         acc.add.addAll(updates);
     }
 
@@ -0,0 +1,118 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of serialization of {@link CommitLog} records, run with {@link GCProfiler} to compare
+ * gc.alloc.rate.norm (bytes per record) of record serialized to reusable buffer vs separate arrays per record.
+ * {@link Durability#OS} to not measure disk. (mapped) compares appends by {@link java.nio.channels.FileChannel}
+ * and to {@link MappedSegment}.
+ * <pre>
+ * Record serialized to new arrays (ByteArrayOutputStream, toByteArray, frame)
+ * Benchmark                                  (batch)  (groupCommit)   Mode  Cnt       Score   Units
+ * CommitLogBenchmark.write                         1          false  thrpt    3  271286.139   ops/s
+ * CommitLogBenchmark.write:gc.alloc.rate.norm      1          false  thrpt    3    5060.506    B/op
+ * CommitLogBenchmark.write                      1000          false  thrpt    3    1158.667   ops/s
+ * CommitLogBenchmark.write:gc.alloc.rate.norm   1000          false  thrpt    3  516276.435    B/op
+ *
+ * Record framed in place in reusable Kryo Output
+ * Benchmark                                  (batch)  (groupCommit)   Mode  Cnt       Score   Units
+ * CommitLogBenchmark.write                         1          false  thrpt    3  392499.579   ops/s
+ * CommitLogBenchmark.write:gc.alloc.rate.norm      1          false  thrpt    3     208.215    B/op
+ * CommitLogBenchmark.write                      1000          false  thrpt    3    1097.502   ops/s
+ * CommitLogBenchmark.write:gc.alloc.rate.norm   1000          false  thrpt    3     214.547    B/op
+ * </pre>
+ */
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+@BenchmarkMode({Mode.Throughput})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Warmup(time = 10, iterations = 1)
+@Measurement(time = 10, iterations = 1)
+public class CommitLogBenchmark {
+
+    @Param({"1", "100", "1000"})
+    private int batch;
+
+    @Param({"false", "true"})
+    private boolean groupCommit;
+
+    @Param({"false", "true"})
+    private boolean mapped;
+
+    private CommitLog<Data100Fields> commitLog;
+    private DeleteAndAdd<Data100Fields> record;
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include("." + CommitLogBenchmark.class.getSimpleName() + ".*")
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(opt).run();
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        final File dir = Files.createTempDirectory("commit-log-benchmark").toFile();
+        dir.deleteOnExit();
+        commitLog = new CommitLog<>(dir, false, Durability.OS, groupCommit ? new GroupCommit(64, 0) : GroupCommit.DISABLED,
+                CommitLog.SEGMENT_SIZE, mapped);
+
+        final List<Data100Fields> add = new ArrayList<>();
+        for (int i = 0; i < batch; i++) {
+            Data100Fields data = new Data100Fields();
+            data.id = String.valueOf(i);
+            data.field1 = "STRING_WITH_DATA" + (i + 1);
+            data.field2 = "STRING_WITH_DATA" + (i + 2);
+            data.field3 = "STRING_WITH_DATA" + (i + 3);
+            data.amount = i;
+            add.add(data);
+        }
+        record = new DeleteAndAdd<>(Collections.<Integer>emptyList(), add);
+    }
+
+    @TearDown(Level.Iteration)
+    public void clear() {
+        commitLog.clear();
+    }
+
+    @TearDown
+    public void tearDown() {
+        commitLog.close();
+    }
+
+    @Benchmark
+    public Object write() {
+        commitLog.write(record);
+        return commitLog;
+    }
+
+}
@@ -15,16 +15,27 @@ limitations under the License.
  */
 package com.github.terma.fastselectmutable;
 
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Output;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class CommitLogTest {
 
@@ -38,7 +49,7 @@ public class CommitLogTest {
 
     @Test
     public void create() throws IOException {
-        new CommitLog<>(dir, false);
+        new CommitLog<>(dir, false).close();
     }
 
     @Test
@@ -50,7 +61,7 @@ public class CommitLogTest {
 
         CommitLog<Data> commitLog = new CommitLog<>(dir, false);
         commitLog.write(new DeleteAndAdd<>(Collections.<Integer>emptyList(), Arrays.asList(data1, data2)));
-        Assert.assertEquals(97, commitLog.size());
+        Assert.assertEquals(105, commitLog.size());
 
         Iterable<DeleteAndAdd<Data>> iterable = commitLog.load();
 
@@ -59,6 +70,7 @@ public class CommitLogTest {
         DeleteAndAdd<Data> deleteAndAdd = iterator.next();
         Assert.assertEquals(2, deleteAndAdd.add.size());
         Assert.assertEquals(0, deleteAndAdd.delete.size());
+        commitLog.close();
     }
 
     @Test
@@ -72,7 +84,7 @@ public class CommitLogTest {
         commitLog.write(new DeleteAndAdd<>(Collections.<Integer>emptyList(), Arrays.asList(data1, data2)));
 
         CommitLog<Data> commitLog1 = new CommitLog<>(dir, false);
-        Assert.assertEquals(97, commitLog1.size());
+        Assert.assertEquals(105, commitLog1.size());
 
         Iterable<DeleteAndAdd<Data>> iterable = commitLog1.load();
 
@@ -81,6 +93,32 @@ public class CommitLogTest {
         DeleteAndAdd<Data> deleteAndAdd = iterator.next();
         Assert.assertEquals(2, deleteAndAdd.add.size());
         Assert.assertEquals(0, deleteAndAdd.delete.size());
+        commitLog.close();
+        commitLog1.close();
+    }
+
+    @Test
+    public void appendSeveralRecordsByOneWrite() throws IOException {
+        Data data1 = new Data();
+        data1.id = "1";
+        Data data2 = new Data();
+        data2.id = "2";
+
+        CommitLog<Data> commitLog = new CommitLog<>(dir, false);
+        CommitLog.await(commitLog.append(Arrays.asList(
+                new DeleteAndAdd<>(Collections.<Integer>emptyList(), Collections.singletonList(data1)),
+                new DeleteAndAdd<>(Collections.singletonList(0), Collections.singletonList(data2)))));
+        CommitLog.await(commitLog.append(Collections.<DeleteAndAdd<Data>>emptyList()));
+        commitLog.close();
+
+        commitLog = new CommitLog<>(dir, false);
+        Iterator<DeleteAndAdd<Data>> iterator = commitLog.load().iterator();
+        Assert.assertEquals("1", iterator.next().add.get(0).id);
+        DeleteAndAdd<Data> second = iterator.next();
+        Assert.assertEquals(Collections.singletonList(0), second.delete);
+        Assert.assertEquals("2", second.add.get(0).id);
+        Assert.assertFalse(iterator.hasNext());
+        commitLog.close();
     }
 
     @Test
@@ -92,6 +130,7 @@ public class CommitLogTest {
 
         Iterator<DeleteAndAdd<Data>> iterator = iterable.iterator();
         Assert.assertEquals(false, iterator.hasNext());
+        commitLog.close();
     }
 
     @Test
@@ -103,13 +142,14 @@ public class CommitLogTest {
 
         CommitLog<Data> commitLog = new CommitLog<>(dir, false);
         commitLog.write(new DeleteAndAdd<>(Collections.<Integer>emptyList(), Arrays.asList(data1, data2)));
-        Assert.assertEquals(97, commitLog.size());
+        Assert.assertEquals(105, commitLog.size());
         commitLog.clear();
 
         Assert.assertEquals(0, commitLog.size());
         Iterable<DeleteAndAdd<Data>> iterable = commitLog.load();
         Iterator<DeleteAndAdd<Data>> iterator = iterable.iterator();
         Assert.assertEquals(false, iterator.hasNext());
+        commitLog.close();
     }
 
     @Test
@@ -121,14 +161,15 @@ public class CommitLogTest {
 
         CommitLog<Data> commitLog = new CommitLog<>(dir, false);
         commitLog.write(new DeleteAndAdd<>(Collections.<Integer>emptyList(), Arrays.asList(data1, data2)));
-        Assert.assertEquals(97, commitLog.size());
+        Assert.assertEquals(105, commitLog.size());
         commitLog.clear();
 
         commitLog.write(new DeleteAndAdd<>(Collections.<Integer>emptyList(), Arrays.asList(data1, data2)));
-        Assert.assertEquals(97, commitLog.size());
+        Assert.assertEquals(105, commitLog.size());
         Iterable<DeleteAndAdd<Data>> iterable = commitLog.load();
         Iterator<DeleteAndAdd<Data>> iterator = iterable.iterator();
         Assert.assertEquals(true, iterator.hasNext());
+        commitLog.close();
     }
 
     @Test
@@ -140,7 +181,7 @@ public class CommitLogTest {
 
         CommitLog<Data> commitLog = new CommitLog<>(dir, false);
         commitLog.write(new DeleteAndAdd<>(Collections.<Integer>emptyList(), Arrays.asList(data1, data2)));
-        Assert.assertEquals(97, commitLog.size());
+        Assert.assertEquals(105, commitLog.size());
         commitLog.clear();
 
         CommitLog<Data> commitLog1 = new CommitLog<>(dir, false);
@@ -148,6 +189,458 @@ public class CommitLogTest {
         Iterable<DeleteAndAdd<Data>> iterable = commitLog1.load();
         Iterator<DeleteAndAdd<Data>> iterator = iterable.iterator();
         Assert.assertEquals(false, iterator.hasNext());
+        commitLog.close();
+        commitLog1.close();
+    }
+
+    @Test
+    public void groupCommitWriteFromManyThreadsAndLoadFromNewInstance() throws Exception {
+        final CommitLog<Data> commitLog = new CommitLog<>(dir, false, new GroupCommit(16, 1));
+
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        for (int i = 0; i < 100; i++) {
+            final Data data = new Data();
+            data.id = Integer.toString(i);
+            executorService.submit(new Runnable() {
+                @Override
+                public void run() {
+                    commitLog.write(new DeleteAndAdd<>(Collections.<Integer>emptyList(), Collections.singletonList(data)));
+                }
+            });
+        }
+        executorService.shutdown();
+        Assert.assertTrue(executorService.awaitTermination(1, TimeUnit.MINUTES));
+        commitLog.close();
+
+        int count = 0;
+        CommitLog<Data> commitLog1 = new CommitLog<>(dir, false);
+        for (DeleteAndAdd<Data> ignore : commitLog1.load()) count++;
+        Assert.assertEquals(100, count);
+        commitLog1.close();
+    }
+
+    @Test
+    public void groupCommitClearWaitsForQueuedRecords() throws IOException {
+        Data data1 = new Data();
+        data1.id = "1";
+
+        CommitLog<Data> commitLog = new CommitLog<>(dir, false, new GroupCommit(16, 10));
+        commitLog.append(new DeleteAndAdd<>(Collections.<Integer>emptyList(), Collections.singletonList(data1)));
+        commitLog.clear();
+
+        Assert.assertEquals(0, commitLog.size());
+        Assert.assertEquals(false, commitLog.load().iterator().hasNext());
+        commitLog.close();
+    }
+
+    @Test
+    public void periodicDurabilityWriteAndLoadFromNewInstance() throws IOException {
+        Data data1 = new Data();
+        data1.id = "1";
+
+        CommitLog<Data> commitLog = new CommitLog<>(dir, false, Durability.periodic(10));
+        commitLog.write(new DeleteAndAdd<>(Collections.<Integer>emptyList(), Collections.singletonList(data1)));
+        commitLog.close();
+
+        commitLog = new CommitLog<>(dir, false);
+        Assert.assertEquals(true, commitLog.load().iterator().hasNext());
+        commitLog.close();
+    }
+
+    @Test
+    public void osDurabilityWriteAndLoad() throws IOException {
+        Data data1 = new Data();
+        data1.id = "1";
+
+        CommitLog<Data> commitLog = new CommitLog<>(dir, false, Durability.OS, new GroupCommit(8, 0));
+        commitLog.write(new DeleteAndAdd<>(Collections.<Integer>emptyList(), Collections.singletonList(data1)));
+
+        Assert.assertEquals(true, commitLog.load().iterator().hasNext());
+        commitLog.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void periodicDurabilityRequiresPositivePeriod() {
+        Durability.periodic(0);
+    }
+
+    @Test
+    public void ignoreTornLastRecordAndAppendAfterIt() throws IOException {
+        Data data1 = new Data();
+        data1.id = "1";
+        Data data2 = new Data();
+        data2.id = "2";
+
+        CommitLog<Data> commitLog = new CommitLog<>(dir, false);
+        commitLog.write(new DeleteAndAdd<>(Collections.<Integer>emptyList(), Collections.singletonList(data1)));
+        long valid = commitLog.size();
+        commitLog.write(new DeleteAndAdd<>(Collections.<Integer>emptyList(), Collections.singletonList(data2)));
+        commitLog.close();
+
+        File segment = new File(dir, "commit-log-1.bin");
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        CommitLog<Data> commitLog1 = new CommitLog<>(dir, false);
+        Assert.assertEquals(valid, commitLog1.size());
+        commitLog1.write(new DeleteAndAdd<>(Collections.<Integer>emptyList(), Collections.singletonList(data2)));
+
+        Iterator<DeleteAndAdd<Data>> iterator = commitLog1.load().iterator();
+        Assert.assertEquals("1", iterator.next().add.get(0).id);
+        Assert.assertEquals("2", iterator.next().add.get(0).id);
+        Assert.assertEquals(false, iterator.hasNext());
+        commitLog1.close();
+    }
+
+    @Test
+    public void failLoadAtDamagedRecordOfSealedSegment() throws IOException {
+        Data data1 = new Data();
+        data1.id = "1";
+
+        CommitLog<Data> commitLog = new CommitLog<>(dir, false);
+        commitLog.write(new DeleteAndAdd<>(Collections.<Integer>emptyList(), Collections.singletonList(data1)));
+        long valid = commitLog.size();
+        commitLog.write(new DeleteAndAdd<>(Collections.<Integer>emptyList(), Collections.singletonList(data1)));
+        commitLog.rotate();
+        commitLog.write(new DeleteAndAdd<>(Collections.<Integer>emptyList(), Collections.singletonList(data1)));
+
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, "commit-log-1.bin"), "rw")) {
+            file.seek(valid + 10);
+            file.write(0xFF);
+        }
+
+        Iterator<DeleteAndAdd<Data>> iterator = commitLog.load().iterator();
+        Assert.assertEquals("1", iterator.next().add.get(0).id);
+        try {
+            iterator.hasNext();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("commit-log-1.bin"));
+        }
+        commitLog.close();
+    }
+
+    @Test
+    public void rollToNextSegmentWhenReachSegmentSize() throws IOException {
+        Data data1 = new Data();
+        data1.id = "1";
+
+        CommitLog<Data> commitLog = new CommitLog<>(dir, false, Durability.PER_WRITE, GroupCommit.DISABLED, 100);
+        for (int i = 0; i < 3; i++)
+            commitLog.write(new DeleteAndAdd<>(Collections.<Integer>emptyList(), Collections.singletonList(data1)));
+
+        Assert.assertEquals(1, commitLog.lastSealed());
+        Assert.assertEquals(3, commitLog.size(-1) / commitLog.size(1));
+        commitLog.delete(1);
+        Assert.assertFalse(new File(dir, "commit-log-1.bin").exists());
+
+        int count = 0;
+        for (DeleteAndAdd<Data> ignore : commitLog.load()) count++;
+        Assert.assertEquals(1, count);
+        commitLog.close();
+    }
+
+    @Test
+    public void mappedSegmentsRollAndLoadWithoutClose() throws IOException {
+        Data data1 = new Data();
+        data1.id = "1";
+
+        CommitLog<Data> commitLog = new CommitLog<>(dir, false, Durability.PER_WRITE, GroupCommit.DISABLED, 300, true);
+        for (int i = 0; i < 5; i++)
+            commitLog.write(new DeleteAndAdd<>(Collections.singletonList(i), Collections.singletonList(data1)));
+
+        Assert.assertEquals(1, commitLog.lastSealed());
+        Assert.assertEquals(commitLog.size(0) - commitLog.size(), new File(dir, "commit-log-1.bin").length());
+        Assert.assertEquals(300, new File(dir, "commit-log-2.bin").length());
+
+        // not written tail of active segment is not a damage
+        CommitLog<Data> commitLog1 = new CommitLog<>(dir, false, Durability.PER_WRITE, GroupCommit.DISABLED, 300, true);
+        List<Integer> deletes = new ArrayList<>();
+        for (DeleteAndAdd<Data> record : commitLog1.load())
+            deletes.add(record.delete.get(0));
+        Assert.assertEquals(Arrays.asList(0, 1, 2, 3, 4), deletes);
+        commitLog1.close();
+        commitLog.close();
+    }
+
+    @Test
+    public void mappedSegmentIsTruncatedToRecordsOnClose() throws IOException {
+        Data data1 = new Data();
+        data1.id = "1";
+
+        CommitLog<Data> commitLog = new CommitLog<>(dir, false, Durability.OS, GroupCommit.DISABLED, 1000, true);
+        commitLog.write(new DeleteAndAdd<>(Collections.<Integer>emptyList(), Collections.singletonList(data1)));
+        commitLog.close();
+        Assert.assertEquals(commitLog.size(), new File(dir, "commit-log-1.bin").length());
+
+        commitLog = new CommitLog<>(dir, false, Durability.OS, GroupCommit.DISABLED, 1000, true);
+        commitLog.write(new DeleteAndAdd<>(Collections.<Integer>emptyList(), Collections.singletonList(data1)));
+        int count = 0;
+        for (DeleteAndAdd<Data> ignore : commitLog.load()) count++;
+        Assert.assertEquals(2, count);
+        commitLog.close();
+    }
+
+    @Test
+    public void loadWithReadAheadKeepsOrderAcrossSegments() throws IOException {
+        CommitLog<Data> commitLog = new CommitLog<>(dir, false, Durability.PER_WRITE, GroupCommit.DISABLED, 300);
+        for (int i = 0; i < 20; i++) {
+            Data data = new Data();
+            data.id = Integer.toString(i);
+            commitLog.write(new DeleteAndAdd<>(Collections.<Integer>emptyList(), Collections.singletonList(data)));
+        }
+        Assert.assertTrue(commitLog.lastSealed() > 1);
+
+        int i = 0;
+        try (ReadAheadIterator<DeleteAndAdd<Data>> records = commitLog.load(-1, Long.MAX_VALUE, 2)) {
+            while (records.hasNext()) {
+                Assert.assertEquals(Integer.toString(i), records.next().add.get(0).id);
+                i++;
+            }
+        }
+        Assert.assertEquals(20, i);
+        commitLog.close();
+    }
+
+    @Test
+    public void loadLegacyCommitLogWithoutFraming() throws IOException {
+        Data data1 = new Data();
+        data1.id = "1";
+
+        Kryo kryo = new Kryo();
+        kryo.register(DeleteAndAdd.class);
+        try (Output output = new Output(new FileOutputStream(new File(dir, "commit-log.bin")))) {
+            kryo.writeObject(output, new DeleteAndAdd<>(Collections.<Integer>emptyList(), Collections.singletonList(data1)));
+            kryo.writeObject(output, new DeleteAndAdd<>(Collections.<Integer>emptyList(), Collections.singletonList(data1)));
+        }
+
+        CommitLog<Data> commitLog = new CommitLog<>(dir, false);
+        int count = 0;
+        for (DeleteAndAdd<Data> ignore : commitLog.load()) count++;
+        Assert.assertEquals(2, count);
+        Assert.assertFalse(new File(dir, "commit-log.bin").exists());
+        commitLog.close();
+    }
+
+    @Test
+    public void columnRecordsAreSmallerThanKryoAndLoadedBack() throws IOException {
+        List<Data> distinct = new ArrayList<>();
+        List<Data> repeated = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Data data = new Data();
+            data.id = "id-" + i;
+            data.amount = i * 10;
+            distinct.add(data);
+            data = new Data();
+            data.id = "id-" + (i % 3);
+            data.deleted = 1;
+            data.amount = -i;
+            repeated.add(data);
+        }
+
+        File kryoDir = Files.createTempDirectory("commit-log-kryo").toFile();
+        kryoDir.deleteOnExit();
+        CommitLog<Data> kryoLog = new CommitLog<>(kryoDir, false);
+        CommitLog<Data> columnLog = new CommitLog<>(dir, false, Durability.PER_WRITE, GroupCommit.DISABLED,
+                CommitLog.SEGMENT_SIZE, false, Data.class);
+        for (List<Data> rows : Arrays.asList(distinct, repeated)) {
+            kryoLog.write(new DeleteAndAdd<>(Arrays.asList(500, 3, 7), rows));
+            columnLog.write(new DeleteAndAdd<>(Arrays.asList(500, 3, 7), rows));
+        }
+        Assert.assertTrue(columnLog.size() * 2 < kryoLog.size());
+
+        kryoLog.close();
+        columnLog.close();
+
+        columnLog = new CommitLog<>(dir, false, Durability.PER_WRITE, GroupCommit.DISABLED,
+                CommitLog.SEGMENT_SIZE, false, Data.class);
+        List<DeleteAndAdd<Data>> records = new ArrayList<>();
+        for (DeleteAndAdd<Data> record : columnLog.load()) records.add(record);
+        Assert.assertEquals(2, records.size());
+        Assert.assertEquals(Arrays.asList(500, 3, 7), records.get(1).delete);
+        Assert.assertEquals("id-99", records.get(0).add.get(99).id);
+        Assert.assertEquals(990, records.get(0).add.get(99).amount);
+        Assert.assertEquals("id-2", records.get(1).add.get(5).id);
+        Assert.assertEquals(1, records.get(1).add.get(5).deleted);
+        Assert.assertEquals(-5, records.get(1).add.get(5).amount);
+        columnLog.close();
+    }
+
+    @Test
+    public void loadKryoRecordsWrittenBeforeColumnRecords() throws IOException {
+        Data data1 = new Data();
+        data1.id = "1";
+        Data data2 = new Data();
+        data2.id = "2";
+
+        CommitLog<Data> commitLog = new CommitLog<>(dir, false);
+        commitLog.write(new DeleteAndAdd<>(Collections.<Integer>emptyList(), Collections.singletonList(data1)));
+        commitLog.close();
+
+        commitLog = new CommitLog<>(dir, false, Durability.PER_WRITE, GroupCommit.DISABLED,
+                CommitLog.SEGMENT_SIZE, false, Data.class);
+        commitLog.write(new DeleteAndAdd<>(Collections.singletonList(0), Collections.singletonList(data2)));
+
+        List<String> ids = new ArrayList<>();
+        for (DeleteAndAdd<Data> record : commitLog.load()) ids.add(record.add.get(0).id);
+        Assert.assertEquals(Arrays.asList("1", "2"), ids);
+        commitLog.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void loadColumnRecordsRequiresDataClass() throws IOException {
+        Data data1 = new Data();
+        data1.id = "1";
+
+        CommitLog<Data> commitLog = new CommitLog<>(dir, false, Durability.PER_WRITE, GroupCommit.DISABLED,
+                CommitLog.SEGMENT_SIZE, false, Data.class);
+        commitLog.write(new DeleteAndAdd<>(Collections.<Integer>emptyList(), Collections.singletonList(data1)));
+        commitLog.close();
+
+        commitLog = new CommitLog<>(dir, false);
+        try {
+            commitLog.load().iterator().hasNext();
+        } finally {
+            commitLog.close();
+        }
+    }
+
+    @Test
+    public void loadValuesSetInPlaceOnlyWithColumnRecords() throws IOException {
+        CommitLog<Data> commitLog = new CommitLog<>(dir, false, Durability.PER_WRITE, GroupCommit.DISABLED,
+                CommitLog.SEGMENT_SIZE, false, Data.class);
+        commitLog.write(new DeleteAndAdd<>(Collections.singletonList(4), Collections.<Data>emptyList(),
+                Arrays.asList(new ColumnUpdate(7, "amount", 5), new ColumnUpdate(2, "amount", -1L))));
+        commitLog.write(new DeleteAndAdd<>(Collections.singletonList(3), Collections.<Data>emptyList()));
+
+        List<DeleteAndAdd<Data>> records = new ArrayList<>();
+        for (DeleteAndAdd<Data> record : commitLog.load()) records.add(record);
+        Assert.assertEquals(Collections.singletonList(4), records.get(0).delete);
+        Assert.assertEquals(2, records.get(0).set.size());
+        Assert.assertEquals(7, records.get(0).set.get(0).position);
+        Assert.assertEquals("amount", records.get(0).set.get(0).column);
+        Assert.assertEquals(5L, records.get(0).set.get(0).value);
+        Assert.assertEquals(2, records.get(0).set.get(1).position);
+        Assert.assertEquals(-1L, records.get(0).set.get(1).value);
+        Assert.assertTrue(records.get(1).set.isEmpty());
+        commitLog.close();
+
+        commitLog = new CommitLog<>(dir, false);
+        try {
+            commitLog.write(new DeleteAndAdd<>(Collections.<Integer>emptyList(),
+                    Collections.<Data>emptyList(), Collections.singletonList(new ColumnUpdate(0, "amount", 1L))));
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // Kryo record can't have values set in place
+        }
+        commitLog.close();
+    }
+
+    @Test
+    public void cutFailedWriteSoNextRecordsAreReadable() throws IOException {
+        for (boolean mapped : new boolean[]{false, true}) {
+            File logDir = new File(dir, Boolean.toString(mapped));
+            Assert.assertTrue(logDir.mkdir());
+            AtomicBoolean fail = new AtomicBoolean();
+            CommitLog<Data> commitLog = failing(logDir, mapped, fail);
+            commitLog.write(add("1"));
+            fail.set(true);
+            try {
+                commitLog.write(add("2"));
+                Assert.fail();
+            } catch (RuntimeException e) {
+                // half of record is written
+            }
+            fail.set(false);
+            commitLog.write(add("3"));
+            commitLog.close();
+
+            commitLog = new CommitLog<>(logDir, false);
+            List<String> ids = new ArrayList<>();
+            for (DeleteAndAdd<Data> record : commitLog.load()) ids.add(record.add.get(0).id);
+            Assert.assertEquals(Arrays.asList("1", "3"), ids);
+            commitLog.close();
+        }
+    }
+
+    @Test
+    public void refuseRecordsAfterFailedGroupCommitWrite() throws IOException {
+        AtomicBoolean fail = new AtomicBoolean();
+        CommitLog<Data> commitLog = failing(dir, false, new GroupCommit(4, 0), fail);
+        commitLog.write(add("1"));
+        fail.set(true);
+        try {
+            commitLog.write(add("2"));
+            Assert.fail();
+        } catch (RuntimeException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+        fail.set(false);
+        try {
+            commitLog.write(add("3"));
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // record of failed write could be applied by caller
+        }
+        commitLog.close();
+
+        commitLog = new CommitLog<>(dir, false);
+        List<String> ids = new ArrayList<>();
+        for (DeleteAndAdd<Data> record : commitLog.load()) ids.add(record.add.get(0).id);
+        Assert.assertEquals(Collections.singletonList("1"), ids);
+        commitLog.close();
+    }
+
+    /**
+     * @param fail - when true segment writes half of first buffer and throws exception
+     */
+    static <T> CommitLog<T> failing(final File dir, final boolean mapped, final AtomicBoolean fail) {
+        return failing(dir, mapped, GroupCommit.DISABLED, fail);
+    }
+
+    static <T> CommitLog<T> failing(final File dir, final boolean mapped, final GroupCommit groupCommit,
+                                    final AtomicBoolean fail) {
+        return new CommitLog<T>(dir, false, Durability.PER_WRITE, groupCommit, CommitLog.SEGMENT_SIZE, mapped) {
+            @Override
+            ActiveSegment open(final long id, final long size) {
+                final ActiveSegment segment = super.open(id, size);
+                return new ActiveSegment() {
+                    @Override
+                    public void write(ByteBuffer[] buffers, long bytes) throws IOException {
+                        if (!fail.get()) {
+                            segment.write(buffers, bytes);
+                            return;
+                        }
+                        ByteBuffer half = buffers[0].duplicate();
+                        half.limit(half.position() + half.remaining() / 2);
+                        segment.write(new ByteBuffer[]{half}, half.remaining());
+                        throw new IOException("No space left on device");
+                    }
+
+                    @Override
+                    public void force() throws IOException {
+                        segment.force();
+                    }
+
+                    @Override
+                    public void truncate(long size) throws IOException {
+                        segment.truncate(size);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        segment.close();
+                    }
+                };
+            }
+        };
+    }
+
+    private static DeleteAndAdd<Data> add(String id) {
+        Data data = new Data();
+        data.id = id;
+        return new DeleteAndAdd<>(Collections.<Integer>emptyList(), Collections.singletonList(data));
     }
 
     @SuppressWarnings("WeakerAccess")
@@ -0,0 +1,258 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class IdIndexTest {
+
+    private File dir;
+
+    @Before
+    public void prepareFiles() throws IOException {
+        dir = Files.createTempDirectory("id-index").toFile();
+        dir.deleteOnExit();
+    }
+
+    @Test
+    public void addAndGet() {
+        Table<MutableFastSelectTest.Data> table = table(1000);
+
+        Assert.assertEquals(1000, table.index.size());
+        Assert.assertArrayEquals(new int[]{0}, table.index.get("0"));
+        Assert.assertArrayEquals(new int[]{999}, table.index.get("999"));
+        Assert.assertEquals(-1, table.index.first("1000"));
+        Assert.assertArrayEquals(new int[0], table.index.get("1000"));
+    }
+
+    @Test
+    public void keepSeveralPositionsForSameId() {
+        Table<MutableFastSelectTest.Data> table = table(3);
+        table.apply(add("1", "1"));
+
+        Assert.assertEquals(3, table.index.size());
+        Assert.assertEquals(3, table.index.count("1"));
+        Assert.assertArrayEquals(new int[]{1, 3, 4}, table.index.get("1"));
+        Assert.assertEquals(1, table.index.first("1"));
+    }
+
+    @Test
+    public void indexNullIdAsAnyOther() {
+        Table<MutableFastSelectTest.Data> table = table(3);
+        table.apply(add(null, "1", null));
+
+        Assert.assertEquals(4, table.index.size());
+        Assert.assertTrue(table.index.contains(null));
+        Assert.assertEquals(2, table.index.count(null));
+        Assert.assertArrayEquals(new int[]{3, 5}, table.index.get(null));
+        Assert.assertArrayEquals(new int[]{1, 4}, table.index.get("1"));
+
+        table.apply(new DeleteAndAdd<>(Arrays.asList(3, 5), Collections.<MutableFastSelectTest.Data>emptyList()));
+        Assert.assertEquals(-1, table.index.first(null));
+        Assert.assertEquals(3, table.index.size());
+    }
+
+    @Test
+    public void removeKeepsOtherIdsReachable() {
+        Table<MutableFastSelectTest.Data> table = table(10000);
+        List<Integer> delete = new ArrayList<>();
+        for (int i = 0; i < 10000; i += 2) delete.add(i);
+        table.apply(new DeleteAndAdd<>(delete, Collections.<MutableFastSelectTest.Data>emptyList()));
+
+        Assert.assertEquals(5000, table.index.size());
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertEquals(i % 2 == 0 ? -1 : i, table.index.first(Integer.toString(i)));
+        }
+    }
+
+    @Test
+    public void buildSameAsApply() {
+        Table<MutableFastSelectTest.Data> table = table(300000);
+        table.apply(new DeleteAndAdd<>(Arrays.asList(5, 7), Collections.<MutableFastSelectTest.Data>emptyList()));
+        table.apply(add("8"));
+
+        table.buildIndex(4);
+        Assert.assertEquals(299998, table.index.size());
+        Assert.assertEquals(-1, table.index.first("5"));
+        Assert.assertArrayEquals(new int[]{8, 300000}, table.index.get("8"));
+    }
+
+    @Test
+    public void buildAndCompactKeepNullIds() {
+        Table<MutableFastSelectTest.Data> table = table(3);
+        table.apply(add(null, "1", null));
+        table.apply(new DeleteAndAdd<>(Collections.singletonList(0), Collections.<MutableFastSelectTest.Data>emptyList()));
+
+        table.buildIndex(4);
+        Assert.assertEquals(3, table.index.size());
+        Assert.assertArrayEquals(new int[]{3, 5}, table.index.get(null));
+
+        Table<MutableFastSelectTest.Data> compacted = table.compact(new int[]{0}, 4);
+        Assert.assertEquals(3, compacted.index.size());
+        Assert.assertArrayEquals(new int[]{2, 4}, compacted.index.get(null));
+        Assert.assertArrayEquals(new int[]{0, 3}, compacted.index.get("1"));
+    }
+
+    @Test
+    public void buildAndCompactSkipNullValuesOfSecondaryIndex() {
+        Table<MutableFastSelectTest.NamedData> table = new Table<>(MutableFastSelectTest.NamedData.class,
+                Collections.singletonMap("name", IndexType.SORTED), false);
+        List<MutableFastSelectTest.NamedData> items = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            MutableFastSelectTest.NamedData data = new MutableFastSelectTest.NamedData();
+            data.id = Integer.toString(i);
+            data.name = i % 2 == 0 ? null : "a";
+            items.add(data);
+        }
+        table.apply(new DeleteAndAdd<>(Collections.<Integer>emptyList(), items));
+        Assert.assertEquals(1, table.indexes.get("name").size());
+
+        table.buildIndexes(4);
+        Assert.assertEquals(1, table.indexes.get("name").size());
+        Assert.assertArrayEquals(new int[]{1, 3}, table.indexes.get("name").range("a", "b"));
+
+        Table<MutableFastSelectTest.NamedData> compacted = table.compact(new int[]{0}, 4);
+        Assert.assertEquals(1, compacted.indexes.get("name").size());
+        Assert.assertArrayEquals(new int[]{0, 2}, compacted.indexes.get("name").get("a"));
+    }
+
+    @Test
+    public void saveAndLoad() throws IOException {
+        Table<MutableFastSelectTest.Data> table = table(100);
+        table.apply(add("1"));
+        table.apply(new DeleteAndAdd<>(Collections.singletonList(2), Collections.<MutableFastSelectTest.Data>emptyList()));
+        File file = new File(dir, "positions.idx");
+        table.index.save(file, table.data.size());
+
+        IdIndex loaded = IdIndex.load(file, table.idData, table.data.size());
+        Assert.assertNotNull(loaded);
+        Assert.assertEquals(99, loaded.size());
+        Assert.assertArrayEquals(new int[]{1, 100}, loaded.get("1"));
+        Assert.assertFalse(loaded.contains("2"));
+        Assert.assertArrayEquals(new int[]{99}, loaded.get("99"));
+    }
+
+    @Test
+    public void ignoreIndexForOtherDataOrDamaged() throws IOException {
+        Table<MutableFastSelectTest.Data> table = table(100);
+        File file = new File(dir, "positions.idx");
+        table.index.save(file, table.data.size());
+
+        Assert.assertNull(IdIndex.load(file, table.idData, 101));
+        Assert.assertNull(IdIndex.load(new File(dir, "none.idx"), table.idData, 100));
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() / 2);
+            raf.write(~raf.read());
+        }
+        Assert.assertNull(IdIndex.load(file, table.idData, 100));
+    }
+
+    @Test
+    public void offHeapIndexSameAsHeapAndLoadedOffHeap() throws IOException {
+        Table<MutableFastSelectTest.Data> table = table(10000, true);
+        table.apply(add("1", "1"));
+        List<Integer> delete = new ArrayList<>();
+        for (int i = 0; i < 10000; i += 3) delete.add(i);
+        table.apply(new DeleteAndAdd<>(delete, Collections.<MutableFastSelectTest.Data>emptyList()));
+
+        Assert.assertEquals(6666, table.index.size());
+        Assert.assertArrayEquals(new int[]{1, 10000, 10001}, table.index.get("1"));
+        Assert.assertEquals(-1, table.index.first("9999"));
+        Assert.assertEquals(9998, table.index.first("9998"));
+
+        File file = new File(dir, "positions.idx");
+        table.index.save(file, table.data.size());
+        IdIndex loaded = IdIndex.load(file, table.idData, table.data.size(), true);
+        Assert.assertNotNull(loaded);
+        Assert.assertEquals(6666, loaded.size());
+        Assert.assertArrayEquals(new int[]{1, 10000, 10001}, loaded.get("1"));
+        loaded.add(9999);
+        Assert.assertEquals(9999, loaded.first("9999"));
+    }
+
+    @Test
+    public void keepThousandsOfPositionsPerValue() throws IOException {
+        Table<MutableFastSelectTest.Data> table = new Table<>(MutableFastSelectTest.Data.class,
+                Collections.singletonMap("amount", IndexType.HASH));
+        List<MutableFastSelectTest.Data> items = new ArrayList<>();
+        for (int i = 0; i < 200000; i++) {
+            MutableFastSelectTest.Data data = new MutableFastSelectTest.Data();
+            data.id = Integer.toString(i);
+            data.amount = i % 4;
+            items.add(data);
+        }
+        table.apply(new DeleteAndAdd<>(Collections.<Integer>emptyList(), items));
+        List<Integer> delete = new ArrayList<>();
+        for (int i = 1; i < 200000; i += 8) delete.add(i);
+        table.apply(new DeleteAndAdd<>(delete, Collections.<MutableFastSelectTest.Data>emptyList()));
+
+        ColumnPositions amount = table.indexes.get("amount");
+        int[] ones = amount.get(1L);
+        Assert.assertEquals(25000, ones.length);
+        for (int i = 0; i < ones.length; i++) Assert.assertEquals(5 + i * 8, ones[i]);
+        Assert.assertEquals(50000, amount.get(2L).length);
+
+        IdIndex built = new IdIndex(amount.data, 0);
+        for (int i = 0; i < 200000; i++) if (!table.deleted(i)) built.add(i);
+        Assert.assertArrayEquals(built.get(3L), amount.get(3L));
+
+        File file = new File(dir, "index.idx");
+        built.save(file, 200000);
+        IdIndex loaded = IdIndex.load(file, amount.data, 200000);
+        Assert.assertNotNull(loaded);
+        Assert.assertArrayEquals(ones, loaded.get(1L));
+        loaded.add(1);
+        Assert.assertEquals(5, loaded.first(1L));
+        Assert.assertEquals(25001, loaded.get(1L).length);
+        Assert.assertEquals(1, loaded.get(1L)[25000]);
+    }
+
+    private static Table<MutableFastSelectTest.Data> table(int size) {
+        return table(size, false);
+    }
+
+    private static Table<MutableFastSelectTest.Data> table(int size, boolean offHeap) {
+        Table<MutableFastSelectTest.Data> table = new Table<>(MutableFastSelectTest.Data.class,
+                Collections.<String, IndexType>emptyMap(), offHeap);
+        String[] ids = new String[size];
+        for (int i = 0; i < size; i++) ids[i] = Integer.toString(i);
+        table.apply(add(ids));
+        return table;
+    }
+
+    private static DeleteAndAdd<MutableFastSelectTest.Data> add(String... ids) {
+        List<MutableFastSelectTest.Data> items = new ArrayList<>();
+        for (String id : ids) {
+            MutableFastSelectTest.Data data = new MutableFastSelectTest.Data();
+            data.id = id;
+            items.add(data);
+        }
+        return new DeleteAndAdd<>(Collections.<Integer>emptyList(), items);
+    }
+
+}
@@ -98,6 +98,8 @@ import java.util.concurrent.TimeUnit;
  * MutableFastSelectBenchmark.add      100              10000000  thrpt         89.451          ops/s
  * MutableFastSelectBenchmark.add     1000               1000000  thrpt          6.118          ops/s
  * MutableFastSelectBenchmark.add     1000              10000000  thrpt          8.572          ops/s
+ *
+ * (durability) param compares {@link Durability} modes: PER_WRITE, PERIODIC (force every 100 msec) and OS
  * </pre>
  */
 @Fork(value = 1, jvmArgs = {"-Xmx2g", "-XX:CompileThreshold=1"})
@@ -114,6 +116,9 @@ public class MutableFastSelectBenchmark {
     @Param({"1000000", "10000000"})
     private int commitLogThreshold;
 
+    @Param({"PER_WRITE", "PERIODIC", "OS"})
+    private String durability;
+
     private Random random = new Random();
 
     private MutableFastSelect<Data100Fields> mutableFastSelect;
@@ -128,7 +133,7 @@ public class MutableFastSelectBenchmark {
     public void setup() throws IOException {
         final File dir = Files.createTempDirectory("mutable-fast-select-benchmark").toFile();
         dir.deleteOnExit();
-        mutableFastSelect = new MutableFastSelect<>(Data100Fields.class, dir, false, commitLogThreshold);
+        mutableFastSelect = new MutableFastSelect<>(Data100Fields.class, dir, false, commitLogThreshold, durability());
 
         for (int i = 0; i < batch; i++) {
             Data100Fields data = new Data100Fields();
@@ -168,6 +173,24 @@ public class MutableFastSelectBenchmark {
         }
     }
 
+    @TearDown
+    public void tearDown() {
+        mutableFastSelect.close();
+    }
+
+    private Durability durability() {
+        switch (durability) {
+            case "PER_WRITE":
+                return Durability.PER_WRITE;
+            case "PERIODIC":
+                return Durability.periodic(100);
+            case "OS":
+                return Durability.OS;
+            default:
+                throw new IllegalArgumentException("Unknown durability: " + durability);
+        }
+    }
+
     @Benchmark
     public Object add() throws Exception {
         mutableFastSelect.modify(new Updater<>(Collections.<String>emptyList(), batchData));
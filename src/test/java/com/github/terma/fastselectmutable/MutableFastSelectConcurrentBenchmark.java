@@ -71,6 +71,15 @@ public class MutableFastSelectConcurrentBenchmark {
     @Param("500000")
     private int initial;
 
+    /**
+     * 1 - no group commit
+     */
+    @Param({"1", "64"})
+    private int groupCommitMaxBatch;
+
+    @Param({"false", "true"})
+    private boolean nonBlockingReads;
+
     private Random random = new Random();
 
     private MutableFastSelect<Data100Fields> mutableFastSelect;
@@ -85,7 +94,10 @@ public class MutableFastSelectConcurrentBenchmark {
     public void setup() throws IOException {
         final File dir = Files.createTempDirectory("mutable-fast-select-benchmark").toFile();
         dir.deleteOnExit();
-        mutableFastSelect = new MutableFastSelect<>(Data100Fields.class, dir, false);
+        mutableFastSelect = new MutableFastSelectBuilder<>(Data100Fields.class, dir)
+                .groupCommit(new GroupCommit(groupCommitMaxBatch, 0))
+                .nonBlockingReads(nonBlockingReads)
+                .create();
 
         List<Data100Fields> init = new ArrayList<>();
         for (int i = 0; i < initial; i++) {
@@ -172,6 +184,11 @@ public class MutableFastSelectConcurrentBenchmark {
         }
     }
 
+    @TearDown
+    public void tearDown() {
+        mutableFastSelect.close();
+    }
+
     @GroupThreads
     @Group("mixed")
     @Benchmark
@@ -186,7 +203,7 @@ public class MutableFastSelectConcurrentBenchmark {
     public void mixedSelect(final Blackhole blackhole) throws Exception {
         mutableFastSelect.select(new Selector<Data100Fields>() {
             @Override
-            public void execute(FastSelect<Data100Fields> data, Map<Object, List<Integer>> positions) {
+            public void execute(FastSelect<Data100Fields> data, Positions positions) {
                 data.select(new Request[]{new ByteRequest("deleted", 0)}, new ArrayLayoutCallback() {
                     @Override
                     public void data(int position) {
@@ -197,13 +214,21 @@ public class MutableFastSelectConcurrentBenchmark {
         });
     }
 
+    @GroupThreads(4)
+    @Group("ingest")
+    @Benchmark
+    public Object ingestAdd() throws Exception {
+        mutableFastSelect.modify(new Updater<>(Collections.<String>emptyList(), batchData));
+        return mutableFastSelect;
+    }
+
     @GroupThreads(3)
     @Group("readonly")
     @Benchmark
     public void readonlySelect(final Blackhole blackhole) throws Exception {
         mutableFastSelect.select(new Selector<Data100Fields>() {
             @Override
-            public void execute(FastSelect<Data100Fields> data, Map<Object, List<Integer>> positions) {
+            public void execute(FastSelect<Data100Fields> data, Positions positions) {
                 data.select(new Request[]{new ByteRequest("deleted", 0)}, new ArrayLayoutCallback() {
                     @Override
                     public void data(int position) {
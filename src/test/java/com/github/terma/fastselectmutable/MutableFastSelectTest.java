@@ -15,6 +15,7 @@ limitations under the License.
  */
 package com.github.terma.fastselectmutable;
 
+import com.github.terma.fastselect.ByteRequest;
 import com.github.terma.fastselect.FastSelect;
 import com.github.terma.fastselect.data.ByteData;
 import com.github.terma.fastselect.data.LongData;
@@ -24,9 +25,22 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class MutableFastSelectTest {
 
@@ -40,7 +54,7 @@ public class MutableFastSelectTest {
 
     @Test
     public void create() throws IOException {
-        new MutableFastSelect<>(Data.class, dir, false);
+        new MutableFastSelect<>(Data.class, dir, false).close();
     }
 
     @Test
@@ -57,6 +71,7 @@ public class MutableFastSelectTest {
         mutableFastSelect.select(catchSelector);
         Assert.assertEquals(2, catchSelector.data.size());
         Assert.assertEquals(2, catchSelector.positions.size());
+        mutableFastSelect.close();
     }
 
     @Test
@@ -77,6 +92,7 @@ public class MutableFastSelectTest {
         Assert.assertEquals((byte) 1, deleted.get(0));
         Assert.assertEquals((byte) 1, deleted.get(1));
         Assert.assertEquals(0, catchSelector.positions.size());
+        mutableFastSelect.close();
     }
 
     @Test
@@ -103,6 +119,223 @@ public class MutableFastSelectTest {
         Assert.assertEquals((long) 12, amountData.get(2));
         Assert.assertEquals((long) 13, amountData.get(3));
         Assert.assertEquals(2, catchSelector.positions.size());
+        mutableFastSelect.close();
+    }
+
+    @Test
+    public void keepAllPositionsOfIdAddedSeveralTimes() throws IOException {
+        Data data1 = new Data();
+        data1.id = "1";
+        Data data2 = new Data();
+        data2.id = "2";
+
+        MutableFastSelect<Data> mutableFastSelect = new MutableFastSelect<>(Data.class, dir, false);
+        mutableFastSelect.modify(new Updater<>(Collections.<String>emptyList(), Arrays.asList(data1, data2, data1)));
+
+        CatchSelector catchSelector = new CatchSelector();
+        mutableFastSelect.select(catchSelector);
+        Assert.assertEquals(2, catchSelector.positions.size());
+        Assert.assertEquals(2, catchSelector.positions.count("1"));
+        Assert.assertArrayEquals(new int[]{0, 2}, catchSelector.positions.get("1"));
+        Assert.assertEquals(1, catchSelector.positions.first("2"));
+        Assert.assertEquals(-1, catchSelector.positions.first("3"));
+
+        mutableFastSelect.modify(Updater.update(data1));
+        mutableFastSelect.select(catchSelector);
+        Assert.assertArrayEquals(new int[]{3}, catchSelector.positions.get("1"));
+        mutableFastSelect.close();
+    }
+
+    @Test
+    public void compactOnDemandAndRestoreSamePositions() throws IOException {
+        Data data1 = new Data();
+        data1.id = "1";
+        Data data2 = new Data();
+        data2.id = "2";
+        Data data3 = new Data();
+        data3.id = "3";
+
+        MutableFastSelect<Data> mutableFastSelect = new MutableFastSelect<>(Data.class, dir, false);
+        mutableFastSelect.modify(Updater.update(data1, data2, data3));
+        data1.amount = 12;
+        mutableFastSelect.modify(Updater.update(data1));
+        mutableFastSelect.modify(Updater.<Data>delete("2"));
+        mutableFastSelect.compact();
+
+        CatchSelector catchSelector = new CatchSelector();
+        mutableFastSelect.select(catchSelector);
+        Assert.assertEquals(2, catchSelector.data.size());
+        Assert.assertArrayEquals(new int[]{0}, catchSelector.positions.get("3"));
+        Assert.assertArrayEquals(new int[]{1}, catchSelector.positions.get("1"));
+
+        data3.amount = 13;
+        mutableFastSelect.modify(Updater.update(data3));
+        mutableFastSelect.close();
+
+        catchSelector = new CatchSelector();
+        mutableFastSelect = new MutableFastSelect<>(Data.class, dir, false);
+        mutableFastSelect.select(catchSelector);
+        ByteData deleted = (ByteData) catchSelector.data.getColumnsByNames().get("deleted").data;
+        LongData amountData = (LongData) catchSelector.data.getColumnsByNames().get("amount").data;
+        Assert.assertEquals(3, catchSelector.data.size());
+        Assert.assertEquals((byte) 1, deleted.get(0));
+        Assert.assertArrayEquals(new int[]{1}, catchSelector.positions.get("1"));
+        Assert.assertArrayEquals(new int[]{2}, catchSelector.positions.get("3"));
+        Assert.assertEquals((long) 12, amountData.get(1));
+        Assert.assertEquals((long) 13, amountData.get(2));
+        mutableFastSelect.close();
+    }
+
+    @Test
+    public void compactWhenDeadRatioReachedAndRestoreFromDataFile() throws IOException {
+        Data data1 = new Data();
+        data1.id = "1";
+        Data data2 = new Data();
+        data2.id = "2";
+
+        MutableFastSelect<Data> mutableFastSelect = new MutableFastSelect<>(Data.class, dir, false, 0,
+                Durability.PER_WRITE, GroupCommit.DISABLED, new Compaction(0.5, 0));
+        mutableFastSelect.modify(Updater.update(data1, data2));
+        for (int i = 0; i < 3; i++) {
+            data1.amount = i;
+            mutableFastSelect.modify(Updater.update(data1));
+        }
+        mutableFastSelect.close();
+
+        CatchSelector catchSelector = new CatchSelector();
+        mutableFastSelect = new MutableFastSelect<>(Data.class, dir, false);
+        mutableFastSelect.select(catchSelector);
+        LongData amountData = (LongData) catchSelector.data.getColumnsByNames().get("amount").data;
+        Assert.assertEquals(2, catchSelector.data.size());
+        Assert.assertArrayEquals(new int[]{0}, catchSelector.positions.get("2"));
+        Assert.assertArrayEquals(new int[]{1}, catchSelector.positions.get("1"));
+        Assert.assertEquals((long) 2, amountData.get(1));
+        mutableFastSelect.close();
+    }
+
+    @Test
+    public void nonBlockingReadsLetModifyWhileSelectIsRunning() throws Exception {
+        Data data1 = new Data();
+        data1.id = "1";
+        final Data data2 = new Data();
+        data2.id = "2";
+
+        final MutableFastSelect<Data> mutableFastSelect =
+                new MutableFastSelectBuilder<>(Data.class, dir).nonBlockingReads(true).create();
+        mutableFastSelect.modify(Updater.update(data1));
+
+        final CountDownLatch selecting = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CatchSelector longSelector = new CatchSelector() {
+            @Override
+            public void execute(FastSelect<Data> data, Positions positions) {
+                super.execute(data, positions);
+                selecting.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        Future<?> select = executorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                mutableFastSelect.select(longSelector);
+            }
+        });
+        Assert.assertTrue(selecting.await(1, TimeUnit.MINUTES));
+
+        executorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                mutableFastSelect.modify(Updater.update(data2));
+            }
+        }).get(1, TimeUnit.MINUTES);
+
+        CatchSelector catchSelector = new CatchSelector();
+        mutableFastSelect.select(catchSelector);
+        Assert.assertEquals(2, catchSelector.data.size());
+        Assert.assertEquals(1, longSelector.data.size());
+
+        release.countDown();
+        select.get(1, TimeUnit.MINUTES);
+        executorService.shutdown();
+
+        data1.amount = 12;
+        mutableFastSelect.modify(Updater.update(data1));
+        mutableFastSelect.modify(Updater.<Data>delete("2"));
+        mutableFastSelect.compact();
+        for (int i = 0; i < 2; i++) {
+            data1.amount = 13 + i;
+            mutableFastSelect.modify(Updater.update(data1));
+            mutableFastSelect.select(catchSelector);
+            LongData amountData = (LongData) catchSelector.data.getColumnsByNames().get("amount").data;
+            Assert.assertEquals(2 + i, catchSelector.data.size());
+            Assert.assertEquals(1, catchSelector.positions.size());
+            Assert.assertEquals((long) 13 + i, amountData.get(catchSelector.positions.first("1")));
+        }
+        mutableFastSelect.close();
+    }
+
+    @Test
+    public void nonBlockingReadsLetOneModifyWhileLongSelectIsRunningThenWaitForIt() throws Exception {
+        final Data data1 = new Data();
+        data1.id = "1";
+        final Data data2 = new Data();
+        data2.id = "2";
+
+        final MutableFastSelect<Data> mutableFastSelect =
+                new MutableFastSelectBuilder<>(Data.class, dir).nonBlockingReads(true).create();
+
+        final CountDownLatch selecting = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        Future<?> select = executorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                mutableFastSelect.select(new Selector<Data>() {
+                    @Override
+                    public void execute(FastSelect<Data> data, Positions positions) {
+                        selecting.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+            }
+        });
+        Assert.assertTrue(selecting.await(1, TimeUnit.MINUTES));
+
+        mutableFastSelect.modify(Updater.update(data1));
+        Future<?> second = executorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                mutableFastSelect.modify(Updater.update(data2));
+            }
+        });
+        try {
+            second.get(200, TimeUnit.MILLISECONDS);
+            Assert.fail();
+        } catch (TimeoutException e) {
+            // waits for long select
+        }
+
+        // selects are not blocked and see first modify
+        CatchSelector catchSelector = new CatchSelector();
+        mutableFastSelect.select(catchSelector);
+        Assert.assertEquals(1, catchSelector.positions.size());
+
+        release.countDown();
+        select.get(1, TimeUnit.MINUTES);
+        second.get(1, TimeUnit.MINUTES);
+        executorService.shutdown();
+        mutableFastSelect.select(catchSelector);
+        Assert.assertEquals(2, catchSelector.positions.size());
+        mutableFastSelect.close();
     }
 
     @Test
@@ -125,16 +358,943 @@ public class MutableFastSelectTest {
 //        Assert.assertEquals((long) 12, amountData.get(2));
 //        Assert.assertEquals((long) 13, amountData.get(3));
 //        Assert.assertEquals(2, catchSelector.positions.size());
+        mutableFastSelect.close();
+    }
+
+    @Test
+    public void restoreFromDataFileAndCommitLogAfterBackgroundSnapshot() throws IOException {
+        Data data1 = new Data();
+        data1.id = "1";
+        Data data2 = new Data();
+        data2.id = "2";
+
+        MutableFastSelect<Data> mutableFastSelect = new MutableFastSelect<>(Data.class, dir, false, 0);
+        mutableFastSelect.modify(Updater.update(data1, data2));
+        data1.amount = 12;
+        mutableFastSelect.modify(Updater.update(data1));
+        mutableFastSelect.close();
+
+        Assert.assertTrue(new File(dir, "manifest").exists());
+
+        CatchSelector catchSelector = new CatchSelector();
+        mutableFastSelect = new MutableFastSelect<>(Data.class, dir, false);
+        mutableFastSelect.select(catchSelector);
+        ByteData deleted = (ByteData) catchSelector.data.getColumnsByNames().get("deleted").data;
+        LongData amountData = (LongData) catchSelector.data.getColumnsByNames().get("amount").data;
+        Assert.assertEquals(3, catchSelector.data.size());
+        Assert.assertEquals((byte) 1, deleted.get(0));
+        Assert.assertEquals((long) 12, amountData.get(2));
+        Assert.assertEquals(2, catchSelector.positions.size());
+        mutableFastSelect.close();
+    }
+
+    @Test
+    public void fallbackToPreviousDataFileWhenCurrentIsDamaged() throws IOException {
+        Data data1 = new Data();
+        data1.id = "1";
+        Data data2 = new Data();
+        data2.id = "2";
+
+        MutableFastSelect<Data> mutableFastSelect = new MutableFastSelect<>(Data.class, dir, false, 0);
+        mutableFastSelect.modify(Updater.update(data1));
+        mutableFastSelect.close();
+        mutableFastSelect = new MutableFastSelect<>(Data.class, dir, false, 0);
+        mutableFastSelect.modify(Updater.update(data2));
+        mutableFastSelect.close();
+
+        File current = new File(dir, "data-2.bin");
+        Assert.assertTrue(current.exists());
+        try (RandomAccessFile file = new RandomAccessFile(current, "rw")) {
+            file.seek(file.length() / 2);
+            file.write(~file.read());
+        }
+
+        CatchSelector catchSelector = new CatchSelector();
+        mutableFastSelect = new MutableFastSelect<>(Data.class, dir, false);
+        mutableFastSelect.select(catchSelector);
+        Assert.assertEquals(2, catchSelector.data.size());
+        Assert.assertEquals(2, catchSelector.positions.size());
+        mutableFastSelect.close();
+    }
+
+    @Test
+    public void failToOpenWhenSealedCommitLogSegmentIsDamaged() throws IOException {
+        Data data = new Data();
+        data.id = "1";
+        CommitLog<Data> commitLog = new CommitLog<>(dir, false);
+        commitLog.write(new DeleteAndAdd<>(Collections.<Integer>emptyList(), Collections.singletonList(data)));
+        long valid = commitLog.size();
+        commitLog.write(new DeleteAndAdd<>(Collections.<Integer>emptyList(), Collections.singletonList(data)));
+        commitLog.rotate();
+        commitLog.write(new DeleteAndAdd<>(Collections.<Integer>emptyList(), Collections.singletonList(data)));
+        commitLog.close();
+
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, "commit-log-1.bin"), "rw")) {
+            file.seek(valid + 10);
+            file.write(0xFF);
+        }
+
+        try {
+            new MutableFastSelect<>(Data.class, dir, false, 0);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("commit-log-1.bin"));
+        }
+        Assert.assertTrue(new File(dir, "commit-log-1.bin").exists());
+        Assert.assertTrue(new File(dir, "commit-log-2.bin").exists());
+        Assert.assertEquals(0, files("data-"));
+    }
+
+    @Test
+    public void saveDeltasBetweenDataFilesAndRestoreFromThem() throws IOException {
+        MutableFastSelectBuilder<Data> builder = new MutableFastSelectBuilder<>(Data.class, dir)
+                .commitLogThreshold(0).deltaSnapshots(2);
+        Data[] rows = new Data[100];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new Data();
+            rows[i].id = Integer.toString(i);
+        }
+        // data file to put deltas on
+        MutableFastSelect<Data> mutableFastSelect = new MutableFastSelect<>(Data.class, dir, false, 0);
+        mutableFastSelect.modify(Updater.update(rows));
+        mutableFastSelect.close();
+
+        for (int i = 0; i < 2; i++) {
+            rows[i].amount = 10 + i;
+            mutableFastSelect = builder.create();
+            mutableFastSelect.modify(Updater.update(rows[i]));
+            mutableFastSelect.close();
+        }
+        Assert.assertEquals(1, files("data-"));
+        Assert.assertEquals(2, files("delta-"));
+
+        CatchSelector catchSelector = new CatchSelector();
+        mutableFastSelect = builder.create();
+        mutableFastSelect.select(catchSelector);
+        LongData amountData = (LongData) catchSelector.data.getColumnsByNames().get("amount").data;
+        Assert.assertEquals(102, catchSelector.data.size());
+        Assert.assertEquals(100, catchSelector.positions.size());
+        Assert.assertTrue(catchSelector.positions.deleted(1));
+        Assert.assertEquals(101, catchSelector.positions.first("1"));
+        Assert.assertEquals((long) 11, amountData.get(101));
+
+        // max count of deltas is reached
+        mutableFastSelect.modify(Updater.<Data>delete("5"));
+        mutableFastSelect.close();
+        Assert.assertEquals(2, files("data-"));
+
+        mutableFastSelect = builder.create();
+        mutableFastSelect.modify(Updater.<Data>delete("6"));
+        mutableFastSelect.close();
+        Assert.assertEquals(1, files("data-"));
+        Assert.assertEquals(1, files("delta-"));
+
+        catchSelector = new CatchSelector();
+        mutableFastSelect = builder.create();
+        mutableFastSelect.select(catchSelector);
+        Assert.assertEquals(102, catchSelector.data.size());
+        Assert.assertEquals(98, catchSelector.positions.size());
+        Assert.assertEquals(-1, catchSelector.positions.first("6"));
+        mutableFastSelect.close();
+    }
+
+    @Test
+    public void fallbackToPreviousGenerationWhenDeltaIsDamaged() throws IOException {
+        MutableFastSelectBuilder<Data> builder = new MutableFastSelectBuilder<>(Data.class, dir)
+                .commitLogThreshold(0).deltaSnapshots(16);
+        for (int i = 0; i < 3; i++) {
+            Data data = new Data();
+            data.id = Integer.toString(i);
+            MutableFastSelect<Data> mutableFastSelect = builder.create();
+            mutableFastSelect.modify(Updater.update(data));
+            mutableFastSelect.close();
+        }
+
+        File[] deltas = dir.listFiles();
+        File current = null;
+        for (File file : deltas) {
+            if (file.getName().startsWith("delta-") && (current == null || file.getName().compareTo(current.getName()) > 0))
+                current = file;
+        }
+        Assert.assertNotNull(current);
+        try (RandomAccessFile file = new RandomAccessFile(current, "rw")) {
+            file.seek(file.length() / 2);
+            file.write(~file.read());
+        }
+
+        CatchSelector catchSelector = new CatchSelector();
+        MutableFastSelect<Data> mutableFastSelect = builder.create();
+        mutableFastSelect.select(catchSelector);
+        Assert.assertEquals(3, catchSelector.data.size());
+        Assert.assertEquals(3, catchSelector.positions.size());
+        mutableFastSelect.close();
+    }
+
+    @Test
+    public void asyncOpenWaitsForDataBeforeSelectAndModify() throws IOException {
+        Data data1 = new Data();
+        data1.id = "1";
+        Data data2 = new Data();
+        data2.id = "2";
+
+        MutableFastSelect<Data> mutableFastSelect = new MutableFastSelect<>(Data.class, dir, false, 0);
+        mutableFastSelect.modify(Updater.update(data1));
+        mutableFastSelect.close();
+
+        mutableFastSelect = new MutableFastSelectBuilder<>(Data.class, dir).asyncOpen(true).create();
+        mutableFastSelect.modify(Updater.update(data2));
+        CatchSelector catchSelector = new CatchSelector();
+        mutableFastSelect.select(catchSelector);
+        Assert.assertEquals(2, catchSelector.data.size());
+        Assert.assertEquals(1, catchSelector.positions.first("2"));
+        mutableFastSelect.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void asyncOpenErrorIsThrownBySelect() {
+        MutableFastSelect<Data> mutableFastSelect = new MutableFastSelectBuilder<>(Data.class, dir)
+                .index("unknown", IndexType.HASH).asyncOpen(true).create();
+        try {
+            mutableFastSelect.select(new CatchSelector());
+        } finally {
+            mutableFastSelect.close();
+        }
+    }
+
+    @Test
+    public void offHeapModifyCompactAndRestore() throws IOException {
+        MutableFastSelectBuilder<Data> builder = new MutableFastSelectBuilder<>(Data.class, dir)
+                .commitLogThreshold(0).offHeap(true).index("amount", IndexType.SORTED);
+        Data data1 = new Data();
+        data1.id = "1";
+        Data data2 = new Data();
+        data2.id = "2";
+        data2.amount = 5;
+
+        MutableFastSelect<Data> mutableFastSelect = builder.create();
+        mutableFastSelect.modify(Updater.update(data1, data2));
+        mutableFastSelect.modify(Updater.<Data>delete("1"));
+        mutableFastSelect.compact();
+        mutableFastSelect.close();
+
+        CatchSelector catchSelector = new CatchSelector();
+        mutableFastSelect = builder.create();
+        mutableFastSelect.select(catchSelector);
+        Assert.assertEquals(1, catchSelector.data.size());
+        Assert.assertEquals(0, catchSelector.positions.first("2"));
+        Assert.assertArrayEquals(new int[]{0}, catchSelector.positions.index("amount").range(1L, 10L));
+        mutableFastSelect.close();
+    }
+
+    @Test
+    public void failToSelectOrModifyWhenOffHeapDataIsReleasedByClose() {
+        for (final boolean nonBlockingReads : new boolean[]{false, true}) {
+            Data data = new Data();
+            data.id = "1";
+            MutableFastSelect<Data> mutableFastSelect = new MutableFastSelectBuilder<>(Data.class, dir)
+                    .offHeap(true).nonBlockingReads(nonBlockingReads).create();
+            mutableFastSelect.modify(Updater.update(data));
+            mutableFastSelect.close();
+
+            try {
+                mutableFastSelect.select(new CatchSelector());
+                Assert.fail();
+            } catch (IllegalStateException e) {
+                Assert.assertEquals("Closed", e.getMessage());
+            }
+            try {
+                mutableFastSelect.modify(Updater.update(data));
+                Assert.fail();
+            } catch (IllegalStateException e) {
+                Assert.assertEquals("Closed", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void longIdsUpdateDeleteAndRestore() throws IOException {
+        LongIdData data1 = new LongIdData();
+        data1.id = 1L << 40;
+        LongIdData data2 = new LongIdData();
+        data2.id = -7;
+
+        MutableFastSelect<LongIdData> mutableFastSelect = new MutableFastSelect<>(LongIdData.class, dir, false, 0);
+        mutableFastSelect.modify(Updater.update(data1, data2));
+        data2.amount = 3;
+        mutableFastSelect.modify(Updater.update(data2));
+        mutableFastSelect.modify(Updater.<LongIdData>delete(1L << 40));
+        mutableFastSelect.close();
+
+        final Positions[] positions = new Positions[1];
+        mutableFastSelect = new MutableFastSelect<>(LongIdData.class, dir, false);
+        mutableFastSelect.select(new Selector<LongIdData>() {
+            @Override
+            public void execute(FastSelect<LongIdData> data, Positions p) {
+                positions[0] = p;
+            }
+        });
+        Assert.assertEquals(1, positions[0].size());
+        Assert.assertEquals(-1, positions[0].first(1L << 40));
+        Assert.assertArrayEquals(new int[]{2}, positions[0].get(-7));
+        Assert.assertEquals(2, positions[0].first((Object) (-7L)));
+        Assert.assertEquals(2, positions[0].first((Object) (-7)));
+        Assert.assertEquals(-1, positions[0].first("-7"));
+        mutableFastSelect.close();
+    }
+
+    @Test
+    public void intIdsShardedByValue() throws IOException {
+        ShardedMutableFastSelect<IntIdData> sharded = new ShardedMutableFastSelect<>(
+                new MutableFastSelectBuilder<>(IntIdData.class, dir), 4);
+        List<IntIdData> rows = new ArrayList<>();
+        for (int i = -50; i < 50; i++) {
+            IntIdData data = new IntIdData();
+            data.id = i;
+            rows.add(data);
+        }
+        sharded.update(rows.toArray(new IntIdData[rows.size()]));
+        sharded.delete(-50L, -1L, 49L);
+
+        int count = sharded.select(new ResultSelector<IntIdData, Integer>() {
+            @Override
+            public Integer execute(FastSelect<IntIdData> data, Positions positions) {
+                return positions.size();
+            }
+        }, new Reducer<Integer>() {
+            @Override
+            public Integer reduce(Integer a, Integer b) {
+                return a + b;
+            }
+        });
+        Assert.assertEquals(97, count);
+        sharded.close();
+    }
+
+    @Test
+    public void setNumericValuesInPlaceAndRestoreFromCommitLogAndDelta() throws IOException {
+        MutableFastSelect<Data> mutableFastSelect = new MutableFastSelect<>(Data.class, dir, false, 0);
+        List<Data> items = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Data data = new Data();
+            data.id = Integer.toString(i);
+            items.add(data);
+        }
+        mutableFastSelect.modify(new Updater<>(Collections.<String>emptyList(), items));
+        mutableFastSelect.close();
+
+        MutableFastSelectBuilder<Data> builder = new MutableFastSelectBuilder<>(Data.class, dir)
+                .index("amount", IndexType.HASH);
+        mutableFastSelect = builder.create();
+        mutableFastSelect.modify(Setter.<Data>set("1", "amount", 5));
+        List<ModifyResult> results = mutableFastSelect.modifyAll(Arrays.asList(
+                Setter.<Data>set("2", "amount", 7L), Setter.<Data>set("3", "amount", 1L)));
+        Assert.assertEquals(1, results.get(0).updated);
+        Assert.assertEquals(0, results.get(0).added);
+        Assert.assertEquals(0, results.get(1).updated);
+        mutableFastSelect.close();
+
+        CatchSelector catchSelector = new CatchSelector();
+        mutableFastSelect = builder.create();
+        mutableFastSelect.select(catchSelector);
+        LongData amountData = (LongData) catchSelector.data.getColumnsByNames().get("amount").data;
+        Assert.assertEquals(3, catchSelector.data.size());
+        Assert.assertEquals((long) 5, amountData.get(1));
+        Assert.assertEquals((long) 7, amountData.get(2));
+        Assert.assertArrayEquals(new int[]{0}, catchSelector.positions.index("amount").get(0L));
+        Assert.assertArrayEquals(new int[]{1}, catchSelector.positions.index("amount").get(5L));
+        mutableFastSelect.close();
+
+        builder.commitLogThreshold(0).deltaSnapshots(2);
+        mutableFastSelect = builder.create();
+        mutableFastSelect.modify(Setter.<Data>set("0", "amount", 9L));
+        mutableFastSelect.close();
+        Assert.assertEquals(1, files("data-"));
+        Assert.assertTrue(files("delta-") > 0);
+
+        catchSelector = new CatchSelector();
+        mutableFastSelect = builder.create();
+        mutableFastSelect.select(catchSelector);
+        amountData = (LongData) catchSelector.data.getColumnsByNames().get("amount").data;
+        Assert.assertEquals(3, catchSelector.data.size());
+        Assert.assertEquals((long) 9, amountData.get(0));
+        Assert.assertEquals((long) 5, amountData.get(1));
+        Assert.assertArrayEquals(new int[]{0}, catchSelector.positions.index("amount").get(9L));
+        mutableFastSelect.close();
+    }
+
+    @Test
+    public void selectByRequestFindsValueSetBySetterBeforeAndAfterRestart() throws IOException {
+        MutableFastSelect<CategoryData> mutableFastSelect = new MutableFastSelect<>(CategoryData.class, dir, false);
+        CategoryData data1 = new CategoryData();
+        data1.id = "1";
+        data1.category = 1;
+        CategoryData data2 = new CategoryData();
+        data2.id = "2";
+        data2.category = 1;
+        mutableFastSelect.modify(Updater.update(data1, data2));
+        mutableFastSelect.modify(Setter.<CategoryData>set("1", "category", (byte) 3).set("amount", 10L));
+        Assert.assertEquals(Collections.singletonList("1"), idsOfCategory(mutableFastSelect, 3));
+        mutableFastSelect.close();
+
+        mutableFastSelect = new MutableFastSelect<>(CategoryData.class, dir, false);
+        Assert.assertEquals(Collections.singletonList("1"), idsOfCategory(mutableFastSelect, 3));
+        Assert.assertEquals(Collections.singletonList("2"), idsOfCategory(mutableFastSelect, 1));
+        mutableFastSelect.close();
+    }
+
+    private static List<String> idsOfCategory(MutableFastSelect<CategoryData> mutableFastSelect, final int category) {
+        final List<String> ids = new ArrayList<>();
+        mutableFastSelect.select(new Selector<CategoryData>() {
+            @Override
+            public void execute(FastSelect<CategoryData> data, Positions positions) {
+                for (CategoryData row : data.select(new ByteRequest("deleted", 0), new ByteRequest("category", category))) {
+                    Assert.assertEquals(category == 3 ? 10L : 0L, row.amount);
+                    ids.add(row.id);
+                }
+            }
+        });
+        return ids;
+    }
+
+    @Test
+    public void setNotNumericValueOrWithKryoCommitLogReplacesRow() throws IOException {
+        NamedData data = new NamedData();
+        data.id = "1";
+        data.name = "a";
+        for (boolean columnCommitLog : new boolean[]{true, false}) {
+            File storeDir = new File(dir, Boolean.toString(columnCommitLog));
+            Assert.assertTrue(storeDir.mkdir());
+            MutableFastSelectBuilder<NamedData> builder = new MutableFastSelectBuilder<>(NamedData.class, storeDir)
+                    .columnCommitLog(columnCommitLog);
+            MutableFastSelect<NamedData> mutableFastSelect = builder.create();
+            mutableFastSelect.modify(Updater.update(data));
+            mutableFastSelect.modify(Setter.<NamedData>set("1", "amount", 3L));
+            mutableFastSelect.modify(Setter.<NamedData>set("1", "amount", 4L).set("name", "b"));
+            mutableFastSelect.close();
+
+            final NamedData[] rows = new NamedData[1];
+            final int[] positions = new int[2];
+            mutableFastSelect = builder.create();
+            mutableFastSelect.select(new Selector<NamedData>() {
+                @Override
+                public void execute(FastSelect<NamedData> fastSelect, Positions p) {
+                    positions[0] = fastSelect.size();
+                    positions[1] = p.first("1");
+                    rows[0] = fastSelect.select().get(positions[1]);
+                }
+            });
+            Assert.assertEquals(columnCommitLog ? 2 : 3, positions[0]);
+            Assert.assertEquals(positions[0] - 1, positions[1]);
+            Assert.assertEquals("b", rows[0].name);
+            Assert.assertEquals(4, rows[0].amount);
+            mutableFastSelect.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void failToSetIdColumn() throws IOException {
+        Data data = new Data();
+        data.id = "1";
+        MutableFastSelect<Data> mutableFastSelect = new MutableFastSelect<>(Data.class, dir, false);
+        try {
+            mutableFastSelect.modify(Updater.update(data));
+            mutableFastSelect.modify(Setter.<Data>set("1", "id", "2"));
+        } finally {
+            mutableFastSelect.close();
+        }
+    }
+
+    @Test
+    public void restorePositionsOfDataFileByPartitions() throws IOException {
+        List<Data> items = new ArrayList<>();
+        for (int i = 0; i < 250000; i++) {
+            Data data = new Data();
+            data.id = Integer.toString(i);
+            items.add(data);
+        }
+
+        MutableFastSelect<Data> mutableFastSelect = new MutableFastSelect<>(Data.class, dir, false, 0);
+        mutableFastSelect.modify(new Updater<>(Collections.<String>emptyList(), items));
+        mutableFastSelect.modify(Updater.update(items.get(7)));
+        mutableFastSelect.close();
+
+        CatchSelector catchSelector = new CatchSelector();
+        mutableFastSelect = new MutableFastSelect<>(Data.class, dir, false);
+        mutableFastSelect.select(catchSelector);
+        Assert.assertEquals(250001, catchSelector.data.size());
+        Assert.assertEquals(250000, catchSelector.positions.size());
+        Assert.assertArrayEquals(new int[]{249999}, catchSelector.positions.get("249999"));
+        Assert.assertArrayEquals(new int[]{250000}, catchSelector.positions.get("7"));
+        mutableFastSelect.close();
+    }
+
+    @Test
+    public void restorePositionsFromIndexSavedWithDataFileOrRebuildWhenDamaged() throws IOException {
+        Data data1 = new Data();
+        data1.id = "1";
+        Data data2 = new Data();
+        data2.id = "2";
+
+        MutableFastSelect<Data> mutableFastSelect = new MutableFastSelect<>(Data.class, dir, false, 0);
+        mutableFastSelect.modify(Updater.update(data1, data2));
+        mutableFastSelect.modify(Updater.update(data1));
+        mutableFastSelect.close();
+
+        File index = new File(dir, "positions-2.idx");
+        Assert.assertTrue(index.exists());
+
+        CatchSelector catchSelector = new CatchSelector();
+        mutableFastSelect = new MutableFastSelect<>(Data.class, dir, false);
+        mutableFastSelect.select(catchSelector);
+        Assert.assertEquals(2, catchSelector.positions.size());
+        Assert.assertArrayEquals(new int[]{2}, catchSelector.positions.get("1"));
+        Assert.assertArrayEquals(new int[]{1}, catchSelector.positions.get("2"));
+        mutableFastSelect.close();
+
+        try (RandomAccessFile file = new RandomAccessFile(index, "rw")) {
+            file.seek(file.length() / 2);
+            file.write(~file.read());
+        }
+
+        catchSelector = new CatchSelector();
+        mutableFastSelect = new MutableFastSelect<>(Data.class, dir, false);
+        mutableFastSelect.select(catchSelector);
+        Assert.assertEquals(2, catchSelector.positions.size());
+        Assert.assertArrayEquals(new int[]{2}, catchSelector.positions.get("1"));
+        mutableFastSelect.close();
+    }
+
+    @Test
+    public void keepDeletedRowsWithoutDeletedColumnAfterRestart() throws IOException {
+        MutableFastSelect<NoDeletedData> mutableFastSelect = new MutableFastSelect<>(NoDeletedData.class, dir, false, 0);
+        mutableFastSelect.modify(Updater.update(noDeleted("1"), noDeleted("2"), noDeleted("3")));
+        mutableFastSelect.modify(Updater.<NoDeletedData>delete("2"));
+        mutableFastSelect.modify(Updater.update(noDeleted("1")));
+        mutableFastSelect.close();
+
+        Assert.assertTrue(new File(dir, "deleted-3.bits").exists());
+        Assert.assertArrayEquals(new int[]{2, 3}, liveRows(new MutableFastSelect<>(NoDeletedData.class, dir, false)));
+
+        mutableFastSelect = new MutableFastSelect<>(NoDeletedData.class, dir, false);
+        mutableFastSelect.modify(Updater.<NoDeletedData>delete("3"));
+        mutableFastSelect.close();
+        Assert.assertArrayEquals(new int[]{3}, liveRows(new MutableFastSelect<>(NoDeletedData.class, dir, false)));
+    }
+
+    @Test
+    public void fallbackToPreviousDataFileWhenTombstonesAreDamaged() throws IOException {
+        MutableFastSelect<NoDeletedData> mutableFastSelect = new MutableFastSelect<>(NoDeletedData.class, dir, false, 0);
+        mutableFastSelect.modify(Updater.update(noDeleted("1"), noDeleted("2")));
+        mutableFastSelect.close();
+        mutableFastSelect = new MutableFastSelect<>(NoDeletedData.class, dir, false, 0);
+        mutableFastSelect.modify(Updater.<NoDeletedData>delete("2"));
+        mutableFastSelect.modify(Updater.update(noDeleted("3")));
+        mutableFastSelect.close();
+
+        File current = new File(dir, "deleted-3.bits");
+        Assert.assertTrue(current.exists());
+        try (RandomAccessFile file = new RandomAccessFile(current, "rw")) {
+            file.seek(file.length() - 1);
+            file.write(~file.read());
+        }
+        Assert.assertArrayEquals(new int[]{0, 2}, liveRows(new MutableFastSelect<>(NoDeletedData.class, dir, false)));
+
+        Assert.assertTrue(current.delete());
+        Assert.assertArrayEquals(new int[]{0, 2}, liveRows(new MutableFastSelect<>(NoDeletedData.class, dir, false)));
+    }
+
+    private static int[] liveRows(MutableFastSelect<NoDeletedData> mutableFastSelect) {
+        final List<Integer> live = new ArrayList<>();
+        mutableFastSelect.select(new Selector<NoDeletedData>() {
+            @Override
+            public void execute(FastSelect<NoDeletedData> data, Positions positions) {
+                for (int i = positions.nextLive(0); i >= 0; i = positions.nextLive(i + 1)) live.add(i);
+            }
+        });
+        mutableFastSelect.close();
+
+        int[] result = new int[live.size()];
+        for (int i = 0; i < result.length; i++) result[i] = live.get(i);
+        return result;
+    }
+
+    private static NoDeletedData noDeleted(String id) {
+        NoDeletedData data = new NoDeletedData();
+        data.id = id;
+        return data;
+    }
+
+    @Test
+    public void keepSecondaryIndexesUpToDateAndRestoreThem() throws IOException {
+        MutableFastSelectBuilder<Data> builder = new MutableFastSelectBuilder<>(Data.class, dir)
+                .commitLogThreshold(0)
+                .index("amount", IndexType.SORTED);
+        MutableFastSelect<Data> mutableFastSelect = builder.create();
+        List<Data> items = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Data data = new Data();
+            data.id = Integer.toString(i);
+            data.amount = i % 5;
+            items.add(data);
+        }
+        mutableFastSelect.modify(new Updater<>(Collections.<String>emptyList(), items));
+        mutableFastSelect.modify(Updater.<Data>delete("2"));
+        Data data = new Data();
+        data.id = "3";
+        data.amount = 100;
+        mutableFastSelect.modify(Updater.update(data));
+
+        CatchSelector catchSelector = new CatchSelector();
+        mutableFastSelect.select(catchSelector);
+        Assert.assertArrayEquals(new int[]{1, 6}, catchSelector.positions.index("amount").get(1L));
+        Assert.assertArrayEquals(new int[]{7, 8, 4, 9}, catchSelector.positions.index("amount").range(2L, 4L));
+        Assert.assertArrayEquals(new int[]{10}, catchSelector.positions.index("amount").get(100L));
+        mutableFastSelect.close();
+
+        Assert.assertTrue(new File(dir, "index-amount-3.idx").exists());
+        catchSelector = new CatchSelector();
+        mutableFastSelect = builder.create();
+        mutableFastSelect.select(catchSelector);
+        Assert.assertEquals(6, catchSelector.positions.index("amount").size());
+        Assert.assertArrayEquals(new int[]{7, 8, 4, 9}, catchSelector.positions.index("amount").range(2L, 4L));
+
+        mutableFastSelect.compact();
+        mutableFastSelect.select(catchSelector);
+        Assert.assertArrayEquals(new int[]{5, 6, 2, 7}, catchSelector.positions.index("amount").range(2L, 4L));
+        mutableFastSelect.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void failWhenIndexColumnDoesNotExist() {
+        new MutableFastSelectBuilder<>(Data.class, dir).index("none", IndexType.HASH).create();
+    }
+
+    @Test
+    public void modifyAllAppliesModifiersInOrderAndReportsResults() throws IOException {
+        Data data1 = new Data();
+        data1.id = "1";
+        Data data2 = new Data();
+        data2.id = "2";
+
+        MutableFastSelect<Data> mutableFastSelect = new MutableFastSelect<>(Data.class, dir, false);
+        List<ModifyResult> results = mutableFastSelect.modifyAll(Arrays.<Modifier<Data>>asList(
+                Updater.update(data1, data2),
+                Updater.update(data1),
+                new Modifier<Data>() {
+                    @Override
+                    public void execute(DeleteAndAdd<Data> acc, FastSelect data, Positions positions) {
+                        throw new IllegalStateException("fail");
+                    }
+                },
+                Updater.<Data>delete("2")));
+
+        Assert.assertEquals(4, results.size());
+        Assert.assertEquals(2, results.get(0).added);
+        Assert.assertEquals(1, results.get(1).deleted);
+        Assert.assertFalse(results.get(2).applied());
+        Assert.assertEquals(1, results.get(3).deleted);
+        mutableFastSelect.close();
+
+        CatchSelector catchSelector = new CatchSelector();
+        mutableFastSelect = new MutableFastSelect<>(Data.class, dir, false);
+        mutableFastSelect.select(catchSelector);
+        Assert.assertEquals(1, catchSelector.positions.size());
+        Assert.assertArrayEquals(new int[]{2}, catchSelector.positions.get("1"));
+        mutableFastSelect.close();
+    }
+
+    @Test
+    public void modifyAllSkipsChangeWithPositionOfNoRowWithoutApplyingAnyOfIt() throws IOException {
+        Data data1 = new Data();
+        data1.id = "1";
+        Data data2 = new Data();
+        data2.id = "2";
+
+        MutableFastSelect<Data> mutableFastSelect = new MutableFastSelectBuilder<>(Data.class, dir)
+                .nonBlockingReads(true).create();
+        List<ModifyResult> results = mutableFastSelect.modifyAll(Arrays.<Modifier<Data>>asList(
+                Updater.update(data1),
+                new Modifier<Data>() {
+                    @Override
+                    public void execute(DeleteAndAdd<Data> acc, FastSelect data, Positions positions) {
+                        // valid position first, then one inside of tombstones capacity but out of rows
+                        acc.delete.add(0);
+                        acc.delete.add(10);
+                    }
+                },
+                Updater.update(data2)));
+        Assert.assertTrue(results.get(0).applied());
+        Assert.assertFalse(results.get(1).applied());
+        Assert.assertTrue(results.get(2).applied());
+
+        // both replicas
+        for (int i = 0; i < 2; i++) {
+            CatchSelector catchSelector = new CatchSelector();
+            mutableFastSelect.select(catchSelector);
+            Assert.assertEquals(2, catchSelector.positions.size());
+            Assert.assertEquals(0, catchSelector.positions.first("1"));
+            mutableFastSelect.modify(new Updater<>(Collections.<String>emptyList(), Collections.<Data>emptyList()));
+        }
+        mutableFastSelect.close();
+
+        CatchSelector catchSelector = new CatchSelector();
+        mutableFastSelect = new MutableFastSelect<>(Data.class, dir, false);
+        mutableFastSelect.select(catchSelector);
+        mutableFastSelect.close();
+        Assert.assertEquals(2, catchSelector.data.size());
+        Assert.assertEquals(0, catchSelector.positions.first("1"));
+        Assert.assertEquals(1, catchSelector.positions.first("2"));
+    }
+
+    @Test
+    public void modifyAsyncCompletesWhenChangeIsVisible() throws Exception {
+        MutableFastSelect<Data> mutableFastSelect = new MutableFastSelect<>(Data.class, dir, false);
+        List<Future<ModifyResult>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Data data = new Data();
+            data.id = Integer.toString(i % 10);
+            futures.add(mutableFastSelect.modifyAsync(Updater.update(data)));
+        }
+        for (Future<ModifyResult> future : futures) Assert.assertEquals(1, future.get().added);
+
+        CatchSelector catchSelector = new CatchSelector();
+        mutableFastSelect.select(catchSelector);
+        Assert.assertEquals(10, catchSelector.positions.size());
+        mutableFastSelect.close();
+
+        try {
+            mutableFastSelect.modifyAsync(Updater.<Data>delete("1"));
+            Assert.fail();
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void modifyAsyncRejectsOrDropsOldestWhenQueueIsFull() throws Exception {
+        for (IngestQueue.Backpressure backpressure : Arrays.asList(IngestQueue.Backpressure.REJECT, IngestQueue.Backpressure.DROP_OLDEST)) {
+            MutableFastSelect<Data> mutableFastSelect = new MutableFastSelectBuilder<>(Data.class, Files.createTempDirectory("ingest").toFile())
+                    .ingestQueue(new IngestQueue(1, backpressure))
+                    .create();
+            final CountDownLatch started = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            Future<ModifyResult> blocking = mutableFastSelect.modifyAsync(new Modifier<Data>() {
+                @Override
+                public void execute(DeleteAndAdd<Data> acc, FastSelect data, Positions positions) {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            started.await();
+
+            Future<ModifyResult> queued = mutableFastSelect.modifyAsync(Updater.<Data>delete("1"));
+            Future<ModifyResult> next = null;
+            try {
+                next = mutableFastSelect.modifyAsync(Updater.<Data>delete("2"));
+                Assert.assertEquals(IngestQueue.Backpressure.DROP_OLDEST, backpressure);
+                try {
+                    queued.get();
+                    Assert.fail();
+                } catch (ExecutionException e) {
+                    Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+                }
+            } catch (RejectedExecutionException e) {
+                Assert.assertEquals(IngestQueue.Backpressure.REJECT, backpressure);
+            }
+
+            release.countDown();
+            Assert.assertTrue(blocking.get().applied());
+            Assert.assertTrue((next == null ? queued : next).get().applied());
+            mutableFastSelect.close();
+        }
+    }
+
+    @Test
+    public void modifyAsyncRejectsModifiersAfterWriterIsStoppedByError() throws Exception {
+        MutableFastSelect<Data> mutableFastSelect = new MutableFastSelect<>(Data.class, dir, false);
+        Future<ModifyResult> failed = mutableFastSelect.modifyAsync(new Modifier<Data>() {
+            @Override
+            public void execute(DeleteAndAdd<Data> acc, FastSelect data, Positions positions) {
+                throw new AssertionError("test");
+            }
+        });
+        try {
+            failed.get(1, TimeUnit.MINUTES);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertEquals("test", e.getCause().getMessage());
+        }
+
+        try {
+            mutableFastSelect.modifyAsync(Updater.<Data>delete("1"));
+            Assert.fail();
+        } catch (RejectedExecutionException e) {
+            Assert.assertEquals("test", e.getCause().getMessage());
+        }
+
+        Data data = new Data();
+        data.id = "1";
+        mutableFastSelect.modify(Updater.update(data));
+        CatchSelector catchSelector = new CatchSelector();
+        mutableFastSelect.select(catchSelector);
+        Assert.assertEquals(1, catchSelector.positions.size());
+        mutableFastSelect.close();
+    }
+
+    @Test
+    public void restoreFromCommitLogAfterSeveralRestarts() throws IOException {
+        Data data1 = new Data();
+        data1.id = "1";
+
+        MutableFastSelect<Data> mutableFastSelect = new MutableFastSelect<>(Data.class, dir, false);
+        mutableFastSelect.modify(Updater.update(data1));
+        mutableFastSelect.close();
+        new MutableFastSelect<>(Data.class, dir, false).close();
+
+        CatchSelector catchSelector = new CatchSelector();
+        mutableFastSelect = new MutableFastSelect<>(Data.class, dir, false);
+        mutableFastSelect.select(catchSelector);
+        Assert.assertEquals(1, catchSelector.data.size());
+        mutableFastSelect.close();
+    }
+
+    @Test
+    public void concurrentModifyWithGroupCommitRestoredFromCommitLog() throws Exception {
+        final MutableFastSelect<Data> mutableFastSelect =
+                new MutableFastSelect<>(Data.class, dir, false, Long.MAX_VALUE, new GroupCommit(8, 1));
+
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        for (int i = 0; i < 50; i++) {
+            final Data data = new Data();
+            data.id = Integer.toString(i);
+            executorService.submit(new Runnable() {
+                @Override
+                public void run() {
+                    mutableFastSelect.modify(Updater.update(data));
+                }
+            });
+        }
+        executorService.shutdown();
+        Assert.assertTrue(executorService.awaitTermination(1, TimeUnit.MINUTES));
+        mutableFastSelect.close();
+
+        CatchSelector catchSelector = new CatchSelector();
+        MutableFastSelect<Data> restored = new MutableFastSelect<>(Data.class, dir, false);
+        restored.select(catchSelector);
+        Assert.assertEquals(50, catchSelector.data.size());
+        Assert.assertEquals(50, catchSelector.positions.size());
+        restored.close();
+    }
+
+    @Test
+    public void parallelSelectReducesChunksInOrderOfRows() {
+        MutableFastSelect<Data> mutableFastSelect = new MutableFastSelect<>(Data.class, dir, false);
+        List<Data> items = new ArrayList<>();
+        for (int i = 0; i < 300000; i++) {
+            Data data = new Data();
+            data.id = Integer.toString(i);
+            data.amount = i;
+            items.add(data);
+        }
+        mutableFastSelect.modify(new Updater<>(Collections.<String>emptyList(), items));
+        mutableFastSelect.modify(Updater.<Data>delete("10"));
+
+        long[] result = mutableFastSelect.parallelSelect(new RangeSelector<Data, long[]>() {
+            @Override
+            public long[] execute(FastSelect<Data> data, Positions positions, int from, int to) {
+                ByteData deleted = (ByteData) data.getColumnsByNames().get("deleted").data;
+                LongData amount = (LongData) data.getColumnsByNames().get("amount").data;
+                long sum = 0;
+                for (int i = from; i < to; i++) if (deleted.data[i] == 0) sum += amount.data[i];
+                return new long[]{from, to, sum, 1};
+            }
+        }, new Reducer<long[]>() {
+            @Override
+            public long[] reduce(long[] left, long[] right) {
+                Assert.assertEquals(left[1], right[0]);
+                return new long[]{left[0], right[1], left[2] + right[2], left[3] + right[3]};
+            }
+        });
+
+        Assert.assertEquals(0, result[0]);
+        Assert.assertEquals(300000, result[1]);
+        Assert.assertEquals(299999L * 300000 / 2 - 10, result[2]);
+        Assert.assertTrue(result[3] > 1);
+        mutableFastSelect.close();
+    }
+
+    @Test
+    public void parallelSelectUsesPoolSharedByInstances() throws IOException {
+        MutableFastSelect<Data> first = new MutableFastSelect<>(Data.class, dir, false);
+        MutableFastSelect<Data> second = new MutableFastSelect<>(Data.class,
+                Files.createTempDirectory("mutable-fast-select-second").toFile(), false);
+        Data data = new Data();
+        data.id = "1";
+        first.modify(Updater.update(data));
+        second.modify(Updater.update(data));
+
+        ForkJoinPool pool = scanPool(first);
+        Assert.assertSame(pool, scanPool(second));
+
+        first.close();
+        Assert.assertSame(pool, scanPool(second));
+        Assert.assertFalse(pool.isShutdown());
+        second.close();
+    }
+
+    @Test
+    public void releaseScanPoolAndCommitLogWriterWhenOpenFails() {
+        final int users = MutableFastSelect.scanPoolUsers();
+        final int writers = threads("commit-log-writer");
+        try {
+            new MutableFastSelectBuilder<>(Data.class, dir).groupCommit(new GroupCommit(8, 1))
+                    .index("unknown", IndexType.HASH).create();
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        Assert.assertEquals(users, MutableFastSelect.scanPoolUsers());
+        Assert.assertEquals(writers, threads("commit-log-writer"));
+    }
+
+    private static int threads(String name) {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) if (thread.getName().equals(name)) count++;
+        return count;
+    }
+
+    private static ForkJoinPool scanPool(MutableFastSelect<Data> mutableFastSelect) {
+        return mutableFastSelect.parallelSelect(new RangeSelector<Data, ForkJoinPool>() {
+            @Override
+            public ForkJoinPool execute(FastSelect<Data> data, Positions positions, int from, int to) {
+                return ((ForkJoinWorkerThread) Thread.currentThread()).getPool();
+            }
+        }, new Reducer<ForkJoinPool>() {
+            @Override
+            public ForkJoinPool reduce(ForkJoinPool left, ForkJoinPool right) {
+                return left;
+            }
+        });
+    }
+
+    private int files(String prefix) {
+        int count = 0;
+        for (String name : dir.list()) if (name.startsWith(prefix) && name.endsWith(".bin")) count++;
+        return count;
     }
 
     @SuppressWarnings("WeakerAccess")
     private static class CatchSelector implements Selector<Data> {
 
         public FastSelect<Data> data;
-        public Map<Object, List<Integer>> positions;
+        public Positions positions;
 
         @Override
-        public void execute(FastSelect<Data> data, Map<Object, List<Integer>> positions) {
+        public void execute(FastSelect<Data> data, Positions positions) {
             this.data = data;
             this.positions = positions;
         }
@@ -153,4 +1313,66 @@ public class MutableFastSelectTest {
         }
     }
 
+    @SuppressWarnings("WeakerAccess")
+    public static class LongIdData implements Item {
+
+        public long id;
+        public long amount;
+
+        @Override
+        public Object getId() {
+            return id;
+        }
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public static class IntIdData implements Item {
+
+        public int id;
+
+        @Override
+        public Object getId() {
+            return id;
+        }
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public static class CategoryData implements Item {
+
+        public byte deleted;
+        public String id;
+        public byte category;
+        public long amount;
+
+        @Override
+        public Object getId() {
+            return id;
+        }
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public static class NamedData implements Item {
+
+        public String id;
+        public String name;
+        public long amount;
+
+        @Override
+        public Object getId() {
+            return id;
+        }
+    }
+
+    @SuppressWarnings("WeakerAccess")
+    public static class NoDeletedData implements Item {
+
+        public String id;
+        public long amount;
+
+        @Override
+        public Object getId() {
+            return id;
+        }
+    }
+
 }
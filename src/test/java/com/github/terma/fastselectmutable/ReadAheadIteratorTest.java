@@ -0,0 +1,92 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ReadAheadIteratorTest {
+
+    @Test
+    public void passErrorOfSourceToConsumer() {
+        ReadAheadIterator<Integer> iterator = new ReadAheadIterator<>(new Source(2) {
+            @Override
+            public Integer next() {
+                if (next == 1) throw new OutOfMemoryError("test");
+                return super.next();
+            }
+        }, 2, "test-read-ahead");
+
+        Assert.assertEquals(Integer.valueOf(0), iterator.next());
+        try {
+            iterator.hasNext();
+            Assert.fail();
+        } catch (OutOfMemoryError e) {
+            Assert.assertEquals("test", e.getMessage());
+        }
+        iterator.close();
+    }
+
+    @Test
+    public void stopReadingAndCloseSourceWhenClosedBeforeEnd() throws InterruptedException {
+        Source source = new Source(1000);
+        ReadAheadIterator<Integer> iterator = new ReadAheadIterator<>(source, 2, "test-read-ahead");
+
+        Assert.assertEquals(Integer.valueOf(0), iterator.next());
+        iterator.close();
+
+        Assert.assertTrue(source.closed.await(1, TimeUnit.MINUTES));
+        Assert.assertTrue(source.next < 1000);
+    }
+
+    private static class Source implements Iterator<Integer>, Closeable {
+
+        final CountDownLatch closed = new CountDownLatch(1);
+        final int size;
+        volatile int next;
+
+        Source(final int size) {
+            this.size = size;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        @Override
+        public Integer next() {
+            return next++;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+
+    }
+
+}
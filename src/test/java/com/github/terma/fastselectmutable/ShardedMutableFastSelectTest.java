@@ -0,0 +1,165 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+import com.github.terma.fastselect.FastSelect;
+import com.github.terma.fastselect.data.ByteData;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class ShardedMutableFastSelectTest {
+
+    private File dir;
+
+    @Before
+    public void prepareFiles() throws IOException {
+        dir = Files.createTempDirectory("sharded-mutable-fast-select").toFile();
+        dir.deleteOnExit();
+    }
+
+    @Test
+    public void routeByIdAndSelectFromAllShards() {
+        ShardedMutableFastSelect<MutableFastSelectTest.Data> sharded = sharded(4);
+        sharded.update(data("1"), data("2"), data("3"), data("4"), data("5"));
+        sharded.update(data("1"));
+        sharded.delete("2", "none");
+
+        Assert.assertEquals(4, (int) sharded.select(new CountSelector(), new SumReducer()));
+        for (String id : Arrays.asList("1", "3", "4", "5")) {
+            Assert.assertEquals(1, (int) sharded.select(new ContainsSelector(id), new SumReducer()));
+        }
+        sharded.close();
+
+        for (int i = 0; i < 4; i++) Assert.assertTrue(new File(dir, "shard-" + i).isDirectory());
+    }
+
+    @Test
+    public void restoreShardsAfterRestart() {
+        ShardedMutableFastSelect<MutableFastSelectTest.Data> sharded = sharded(3);
+        for (int i = 0; i < 100; i++) sharded.update(data(Integer.toString(i)));
+        sharded.delete("7");
+        sharded.close();
+
+        sharded = sharded(3);
+        Assert.assertEquals(99, (int) sharded.select(new CountSelector(), new SumReducer()));
+        Assert.assertEquals(0, (int) sharded.select(new ContainsSelector("7"), new SumReducer()));
+        sharded.close();
+    }
+
+    @Test
+    public void modifyWhileLongSelectIsRunningOnAllShards() throws Exception {
+        final ShardedMutableFastSelect<MutableFastSelectTest.Data> sharded = new ShardedMutableFastSelect<>(
+                new MutableFastSelectBuilder<>(MutableFastSelectTest.Data.class, dir).nonBlockingReads(true), 2);
+        final CountDownLatch selecting = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        Future<Integer> select = executorService.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return sharded.select(new ResultSelector<MutableFastSelectTest.Data, Integer>() {
+                    @Override
+                    public Integer execute(FastSelect<MutableFastSelectTest.Data> data, Positions positions) {
+                        selecting.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                        return positions.size();
+                    }
+                }, new SumReducer());
+            }
+        });
+        Assert.assertTrue(selecting.await(1, TimeUnit.MINUTES));
+
+        // replicas let one modify per shard to pass long select
+        executorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                sharded.update(data("1"), data("2"), data("3"), data("4"));
+            }
+        }).get(1, TimeUnit.MINUTES);
+
+        release.countDown();
+        Assert.assertEquals(0, (int) select.get(1, TimeUnit.MINUTES));
+        Assert.assertEquals(4, (int) sharded.select(new CountSelector(), new SumReducer()));
+        executorService.shutdown();
+        sharded.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void failWhenCountOfShardsChanged() {
+        sharded(2).close();
+        sharded(3);
+    }
+
+    private ShardedMutableFastSelect<MutableFastSelectTest.Data> sharded(int count) {
+        return new ShardedMutableFastSelect<>(
+                new MutableFastSelectBuilder<>(MutableFastSelectTest.Data.class, dir), count);
+    }
+
+    private static MutableFastSelectTest.Data data(String id) {
+        MutableFastSelectTest.Data data = new MutableFastSelectTest.Data();
+        data.id = id;
+        return data;
+    }
+
+    private static class CountSelector implements ResultSelector<MutableFastSelectTest.Data, Integer> {
+
+        @Override
+        public Integer execute(FastSelect<MutableFastSelectTest.Data> data, Positions positions) {
+            ByteData deleted = (ByteData) data.getColumnsByNames().get("deleted").data;
+            int count = 0;
+            for (int i = 0; i < data.size(); i++) if (deleted.data[i] == 0) count++;
+            return count;
+        }
+    }
+
+    private static class ContainsSelector implements ResultSelector<MutableFastSelectTest.Data, Integer> {
+
+        private final String id;
+
+        ContainsSelector(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public Integer execute(FastSelect<MutableFastSelectTest.Data> data, Positions positions) {
+            return positions.count(id);
+        }
+    }
+
+    private static class SumReducer implements Reducer<Integer> {
+
+        @Override
+        public Integer reduce(Integer left, Integer right) {
+            return left + right;
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+Copyright 2017 Artem Stasiuk
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package com.github.terma.fastselectmutable;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+
+public class TombstonesTest {
+
+    @Test
+    public void iterateLiveRowsSkippingDeletedWords() {
+        Tombstones tombstones = new Tombstones(0);
+        tombstones.grow(300);
+        for (int i = 0; i < 299; i++) if (i != 70) tombstones.delete(i);
+
+        Assert.assertEquals(298, tombstones.dead());
+        Assert.assertEquals(70, tombstones.nextLive(0));
+        Assert.assertEquals(299, tombstones.nextLive(71));
+        Assert.assertEquals(-1, tombstones.nextLive(300));
+        Assert.assertTrue(tombstones.isDeleted(0));
+        Assert.assertFalse(tombstones.isDeleted(70));
+    }
+
+    @Test
+    public void deleteOnlyOnce() {
+        Tombstones tombstones = new Tombstones(10);
+
+        Assert.assertTrue(tombstones.delete(3));
+        Assert.assertFalse(tombstones.delete(3));
+        tombstones.delete(9);
+        Assert.assertEquals(2, tombstones.dead());
+        Assert.assertArrayEquals(new int[]{3, 9}, tombstones.deleted());
+        Assert.assertEquals(-1, new Tombstones(64).nextLive(64));
+    }
+
+    @Test
+    public void releaseDirectMemoryOfGrownWordsAndOnFree() {
+        final long before = directMemory();
+        Tombstones tombstones = new Tombstones(0, true);
+        for (int rows = 64; rows <= 1 << 26; rows *= 2) tombstones.grow(rows);
+        tombstones.delete((1 << 26) - 1);
+
+        final long words = (1 << 26) / 8;
+        final long grown = directMemory() - before;
+        Assert.assertTrue("direct memory " + grown, grown >= words && grown < words + words / 2);
+
+        tombstones.free();
+        Assert.assertTrue(directMemory() - before < words / 2);
+    }
+
+    private static long directMemory() {
+        for (final BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) return pool.getMemoryUsed();
+        }
+        throw new IllegalStateException("No direct buffer pool");
+    }
+
+    @Test
+    public void saveAndLoad() throws IOException {
+        File file = Files.createTempFile("tombstones", ".bits").toFile();
+        file.deleteOnExit();
+        Tombstones tombstones = new Tombstones(1000);
+        tombstones.delete(1);
+        tombstones.delete(999);
+        tombstones.save(file);
+
+        Tombstones loaded = Tombstones.load(file, 1000);
+        Assert.assertNotNull(loaded);
+        Assert.assertArrayEquals(new int[]{1, 999}, loaded.deleted());
+        Assert.assertNull(Tombstones.load(file, 1001));
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() / 2);
+            raf.write(~raf.read());
+        }
+        Assert.assertNull(Tombstones.load(file, 1000));
+    }
+
+    @Test
+    public void offHeapGrowKeepsDeletedAndLoadsOffHeap() throws IOException {
+        File file = Files.createTempFile("tombstones", ".bits").toFile();
+        file.deleteOnExit();
+        Tombstones tombstones = new Tombstones(10, true);
+        tombstones.delete(3);
+        tombstones.grow(1000);
+        tombstones.delete(999);
+        Assert.assertArrayEquals(new int[]{3, 999}, tombstones.deleted());
+        Assert.assertEquals(4, tombstones.nextLive(3));
+        tombstones.save(file);
+
+        Tombstones loaded = Tombstones.load(file, 1000, true);
+        Assert.assertNotNull(loaded);
+        Assert.assertArrayEquals(new int[]{3, 999}, loaded.deleted());
+        Assert.assertEquals(2, loaded.dead());
+    }
+
+}